@@ -0,0 +1,97 @@
+package me.hexian000.filehistory;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end backup throughput from {@link Repository#offer} until the workers are idle.
+ * Each iteration touches the sources so that every offer stores a new version.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BackupBenchmark {
+	private static final int SMALL_FILES = 2000;
+	private static final int SMALL_SIZE = 4096;
+	private static final int LARGE_SIZE = 256 * 1024 * 1024;
+
+	@Param({Repository.STORAGE_PLAIN, Repository.STORAGE_CHUNK})
+	public String storage;
+
+	@Param({Durability.NONE, Durability.BATCH, Durability.FILE})
+	public String durability;
+
+	private Path work;
+	private Repository repository;
+	private File[] smallFiles;
+	private File largeFile;
+	private long version = 1546300800000L;
+
+	@Setup
+	public void setup() throws IOException {
+		work = BenchUtils.createTempDirectory("bench-backup");
+		final Path watch = Files.createDirectories(work.resolve("watch"));
+		final Random random = new Random(42);
+		final byte[] small = new byte[SMALL_SIZE];
+		smallFiles = new File[SMALL_FILES];
+		for (int i = 0; i < SMALL_FILES; i++) {
+			random.nextBytes(small);
+			smallFiles[i] = Files.write(watch.resolve("small" + i + ".bin"), small).toFile();
+		}
+		final byte[] large = new byte[LARGE_SIZE];
+		random.nextBytes(large);
+		largeFile = Files.write(watch.resolve("large.bin"), large).toFile();
+		final Properties options = new Properties();
+		options.setProperty(Repository.OPTION_STORAGE, storage);
+		options.setProperty(Repository.OPTION_DURABILITY, durability);
+		repository = new Repository(work.resolve("repo").toString(), BenchUtils.quietLogger(), options);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		repository.close();
+		BenchUtils.deleteTree(work);
+	}
+
+	@Setup(Level.Iteration)
+	public void touch() {
+		version += 1000; // every iteration stores new versions
+		for (File file : smallFiles) {
+			//noinspection ResultOfMethodCallIgnored
+			file.setLastModified(version);
+		}
+		//noinspection ResultOfMethodCallIgnored
+		largeFile.setLastModified(version);
+	}
+
+	private void offer(File file) {
+		final WatcherEvent event = new WatcherEvent(WatcherEvent.EVENT_MODIFY, file.toPath().toAbsolutePath());
+		while (!repository.offer(event)) {
+			Thread.onSpinWait();
+		}
+	}
+
+	@Benchmark
+	public void smallFileStorm() throws InterruptedException {
+		for (File file : smallFiles) {
+			offer(file);
+		}
+		repository.flush();
+	}
+
+	@Benchmark
+	public void largeFileCopy() throws InterruptedException {
+		offer(largeFile);
+		repository.flush();
+	}
+}
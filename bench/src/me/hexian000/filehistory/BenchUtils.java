@@ -0,0 +1,40 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+final class BenchUtils {
+	private BenchUtils() {
+	}
+
+	/**
+	 * Temporary directories are created under java.io.tmpdir, point it to the file system under test.
+	 */
+	static Path createTempDirectory(String prefix) throws IOException {
+		return Files.createTempDirectory(prefix);
+	}
+
+	static void deleteTree(Path root) throws IOException {
+		if (root == null || !Files.exists(root)) {
+			return;
+		}
+		Files.walkFileTree(root, new SimpleFileVisitor<>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	static Logger quietLogger() {
+		return new Logger(null);
+	}
+}
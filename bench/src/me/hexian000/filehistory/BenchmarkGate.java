@@ -0,0 +1,85 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Compares two JMH result files written with {@code -rf csv} and fails if any benchmark regressed.
+ * <p>
+ * Usage: BenchmarkGate baseline.csv current.csv [tolerance percent, default 10]
+ */
+public class BenchmarkGate {
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: BenchmarkGate baseline.csv current.csv [tolerance percent]");
+			System.exit(2);
+		}
+		final double tolerance = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.1;
+		final Map<String, String[]> baseline = load(args[0]);
+		final Map<String, String[]> current = load(args[1]);
+		int regressions = 0;
+		for (Map.Entry<String, String[]> item : current.entrySet()) {
+			final String[] base = baseline.get(item.getKey());
+			if (base == null) {
+				System.out.println("NEW   " + item.getKey());
+				continue;
+			}
+			final double before = Double.parseDouble(base[4]), after = Double.parseDouble(item.getValue()[4]);
+			final boolean higherIsBetter = "thrpt".equals(item.getValue()[1]);
+			final double change = (after - before) / before;
+			final boolean regressed = higherIsBetter ? change < -tolerance : change > tolerance;
+			if (regressed) {
+				regressions++;
+			}
+			System.out.printf("%s %s: %.3f -> %.3f %s (%+.1f%%)%n", regressed ? "FAIL " : "OK   ",
+					item.getKey(), before, after, item.getValue()[6], change * 100);
+		}
+		if (regressions > 0) {
+			System.out.println(regressions + " benchmark(s) regressed by more than " + tolerance * 100 + "%");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return rows keyed by benchmark name and parameters
+	 */
+	private static Map<String, String[]> load(String file) throws IOException {
+		final List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+		final String[] header = parse(lines.get(0));
+		final Map<String, String[]> rows = new LinkedHashMap<>();
+		for (String line : lines.subList(1, lines.size())) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			final String[] row = parse(line);
+			final StringBuilder key = new StringBuilder(row[0]);
+			for (int i = 7; i < row.length; i++) {
+				key.append(' ').append(header[i].replace("Param: ", "")).append('=').append(row[i]);
+			}
+			rows.put(key.toString(), row);
+		}
+		return rows;
+	}
+
+	private static String[] parse(String line) {
+		final List<String> fields = new ArrayList<>();
+		final StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			final char c = line.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (c == ',' && !quoted) {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields.toArray(new String[0]);
+	}
+}
@@ -0,0 +1,57 @@
+package me.hexian000.filehistory;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to copy one file per {@link Copier} method. The temporary directory decides the file system, set
+ * {@code -Djava.io.tmpdir} to compare e.g. btrfs and ext4; "reflink" falls back to "stream" where unsupported.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CopyBenchmark {
+	@Param({Copier.STREAM, Copier.TRANSFER, Copier.REFLINK})
+	public String mode;
+
+	@Param({"65536", "268435456"})
+	public int size;
+
+	private Path work;
+	private Path source;
+	private Path target;
+	private Copier copier;
+
+	@Setup
+	public void setup() throws IOException {
+		work = BenchUtils.createTempDirectory("bench-copy");
+		final byte[] data = new byte[size];
+		new Random(42).nextBytes(data);
+		source = Files.write(work.resolve("source.bin"), data);
+		target = work.resolve("target.bin");
+		copier = new Copier(mode);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		BenchUtils.deleteTree(work);
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteTarget() throws IOException {
+		Files.deleteIfExists(target);
+	}
+
+	@Benchmark
+	public void copy() throws IOException {
+		copier.copy(source, target);
+	}
+}
@@ -0,0 +1,78 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares space used and restore latency of plain and delta storage for a file edited in place.
+ * <p>
+ * Usage: DeltaStorageBenchmark [file size in MiB] [versions] [bytes changed per version]
+ */
+public class DeltaStorageBenchmark {
+	public static void main(String[] args) throws IOException {
+		final int size = (args.length > 0 ? Integer.parseInt(args[0]) : 64) * 1024 * 1024;
+		final int versions = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		final int changed = args.length > 2 ? Integer.parseInt(args[2]) : 8192;
+
+		final Path work = BenchUtils.createTempDirectory("delta-bench");
+		try {
+			System.out.printf("%d versions of a %d MiB file, %d bytes changed per version%n",
+					versions, size / 1024 / 1024, changed);
+			System.out.printf("%-12s %12s %14s %14s%n", "storage", "stored MiB", "avg store ms", "avg fetch ms");
+			final Compression none = new Compression(Compression.NONE, "");
+			run("plain", new PlainStorage(none, new Copier(Copier.AUTO)), work, size, versions, changed);
+			for (int keyframe : new int[]{4, 16, 64}) {
+				run("delta/" + keyframe, new DeltaStorage(work.resolve("tmp-" + keyframe), keyframe, none,
+								new Durability(Durability.NONE, 0, BenchUtils.quietLogger())),
+						work, size, versions, changed);
+			}
+		} finally {
+			BenchUtils.deleteTree(work);
+		}
+	}
+
+	private static void run(String name, Storage storage, Path work, int size, int versions, int changed)
+			throws IOException {
+		final Random random = new Random(42);
+		final byte[] data = new byte[size];
+		random.nextBytes(data);
+		final Path source = work.resolve("source.bin");
+		final Path repo = Files.createDirectories(work.resolve(name.replace('/', '-')));
+		final List<Path> stored = new ArrayList<>();
+		long storeNanos = 0;
+		for (int i = 0; i < versions; i++) {
+			final int offset = random.nextInt(size - changed);
+			for (int j = 0; j < changed; j++) {
+				data[offset + j] = (byte) random.nextInt();
+			}
+			Files.write(source, data);
+			final Path target = repo.resolve("source (" + i + ").bin");
+			final long start = System.nanoTime();
+			storage.store(SourceFile.of(source), target, stored.isEmpty() ? null : stored.get(stored.size() - 1));
+			storeNanos += System.nanoTime() - start;
+			stored.add(target);
+		}
+		long storedBytes = 0;
+		for (Path path : stored) {
+			storedBytes += Files.size(path);
+		}
+		long fetchNanos = 0;
+		final byte[] buf = new byte[65536];
+		for (Path path : stored) {
+			final long start = System.nanoTime();
+			try (InputStream in = storage.open(path)) {
+				//noinspection StatementWithEmptyBody
+				while (in.read(buf) >= 0) {
+				}
+			}
+			fetchNanos += System.nanoTime() - start;
+		}
+		System.out.printf("%-12s %12.1f %14.1f %14.1f%n", name, storedBytes / 1048576.0,
+				storeNanos / 1e6 / versions, fetchNanos / 1e6 / versions);
+	}
+}
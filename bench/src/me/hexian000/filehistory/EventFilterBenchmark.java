@@ -0,0 +1,52 @@
+package me.hexian000.filehistory;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link EventFilter#accept} with concurrent producers. The quiet period is long enough that no
+ * event is emitted, so only insertion and coalescing are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventFilterBenchmark {
+	@Param({"1000", "100000"})
+	public int paths;
+
+	private EventFilter filter;
+	private Path[] names;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = 0;
+	}
+
+	@Setup
+	public void setup() {
+		filter = new EventFilter(event -> true, TimeUnit.HOURS.toMillis(1), 1000);
+		names = new Path[paths];
+		for (int i = 0; i < paths; i++) {
+			names[i] = Paths.get("/home/user/project/src/module" + (i % 100), "File" + i + ".java");
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		filter.close();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void accept(Cursor cursor) {
+		final Path name = names[cursor.next];
+		cursor.next = (cursor.next + 1) % names.length;
+		filter.accept(new WatcherEvent(WatcherEvent.EVENT_MODIFY, name));
+	}
+}
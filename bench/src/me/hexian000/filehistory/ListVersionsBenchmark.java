@@ -0,0 +1,57 @@
+package me.hexian000.filehistory;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link Repository#listVersions} for a file with many versions. The repository is laid out on disk and
+ * indexed on open, like an existing repository.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListVersionsBenchmark {
+	@Param({"1000", "10000", "100000"})
+	public int versions;
+
+	private Path repoPath;
+	private Repository repository;
+	private File file;
+
+	@Setup
+	public void setup() throws IOException {
+		repoPath = BenchUtils.createTempDirectory("bench-repo");
+		file = new File("/home/user/data/report.txt");
+		final Repository writer = new Repository(repoPath.toString(), BenchUtils.quietLogger());
+		final long start = 1546300800000L;
+		for (int i = 0; i < versions; i++) {
+			final Path version = writer.getVersionPath(file.toPath(), start + i * 1000L);
+			Files.createDirectories(version.getParent());
+			Files.createFile(version);
+		}
+		writer.rebuildIndex();
+		writer.close();
+		repository = new Repository(repoPath.toString(), BenchUtils.quietLogger());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		repository.close();
+		BenchUtils.deleteTree(repoPath);
+	}
+
+	@Benchmark
+	public List<Date> listVersions() {
+		return repository.listVersions(file);
+	}
+}
@@ -0,0 +1,51 @@
+package me.hexian000.filehistory;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per event cost of mapping a watched path to its repository location, run with {@code -prof gc} to see the
+ * allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryNameBenchmark {
+	private Path repoPath;
+	private Repository repository;
+	private MirrorPaths mirrors;
+	private Path file;
+	private long time;
+
+	@Setup
+	public void setup() throws IOException {
+		repoPath = BenchUtils.createTempDirectory("bench-repo");
+		repository = new Repository(repoPath.toString(), BenchUtils.quietLogger());
+		mirrors = new MirrorPaths(repoPath);
+		file = Paths.get("/home/user/project/src/main/java/com/example/service/impl/Service.java");
+		time = 1546300800000L;
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		repository.close();
+		BenchUtils.deleteTree(repoPath);
+	}
+
+	@Benchmark
+	public Object mirror() {
+		return mirrors.get(file);
+	}
+
+	@Benchmark
+	public Path getVersionPath() {
+		return repository.getVersionPath(file, time);
+	}
+}
@@ -0,0 +1,175 @@
+package me.hexian000.filehistory;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Bounded multi-worker queue. Events of the same path are coalesced and never handled concurrently.
+ * <p>
+ * One queue may be shared by several repositories, each event is handled by the handler it was offered with.
+ * Events to retry are offered again by a timer, so no worker is blocked waiting for them.
+ */
+class BackupQueue {
+	private static final class State {
+		WatcherEvent event;
+		Consumer<WatcherEvent> handler;
+		boolean running = false;
+		boolean dirty = false;
+
+		State(WatcherEvent event, Consumer<WatcherEvent> handler) {
+			this.event = event;
+			this.handler = handler;
+		}
+	}
+
+	private final BlockingQueue<Path> queue;
+	private final Map<Path, State> states = new HashMap<>();
+	private final Thread[] workers;
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread thread = new Thread(r, "backup-retry");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private int delayed = 0; // guarded by states
+	private volatile boolean closed = false;
+
+	BackupQueue(int workers, int capacity) {
+		queue = new ArrayBlockingQueue<>(capacity);
+		this.workers = new Thread[workers];
+		for (int i = 0; i < workers; i++) {
+			this.workers[i] = new Thread(this::work, "backup-" + i);
+			this.workers[i].setDaemon(true); // the owner closes the queue to finish pending backups
+			this.workers[i].start();
+		}
+	}
+
+	/**
+	 * @return false if the queue is full and the event should be offered again later
+	 */
+	boolean offer(WatcherEvent event, Consumer<WatcherEvent> handler) {
+		if (closed) {
+			throw new IllegalStateException("queue is closed");
+		}
+		synchronized (states) {
+			final State state = states.get(event.getPath());
+			if (state != null) {
+				state.event = event;
+				state.handler = handler;
+				if (state.running) {
+					state.dirty = true;
+				}
+				return true;
+			}
+			if (!queue.offer(event.getPath())) {
+				return false;
+			}
+			states.put(event.getPath(), new State(event, handler));
+			return true;
+		}
+	}
+
+	/**
+	 * Offers an event after a delay, and again after each further delay while the queue is full. Events still
+	 * delayed when the queue is closed are dropped.
+	 */
+	void offerLater(WatcherEvent event, Consumer<WatcherEvent> handler, long delay) {
+		synchronized (states) {
+			if (closed) {
+				return;
+			}
+			delayed++;
+			timer.schedule(() -> {
+				synchronized (states) {
+					delayed--;
+					if (!closed && !offer(event, handler)) {
+						offerLater(event, handler, delay);
+					}
+					states.notifyAll();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	int size() {
+		return queue.size();
+	}
+
+	private void work() {
+		while (true) {
+			final Path path;
+			try {
+				path = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (path == null) {
+				if (closed) {
+					return;
+				}
+				continue;
+			}
+			State state;
+			WatcherEvent event;
+			Consumer<WatcherEvent> handler;
+			synchronized (states) {
+				state = states.get(path);
+				state.running = true;
+				event = state.event;
+				handler = state.handler;
+			}
+			while (true) {
+				try {
+					handler.accept(event);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				synchronized (states) {
+					if (!state.dirty) {
+						states.remove(path);
+						states.notifyAll();
+						break;
+					}
+					state.dirty = false;
+					event = state.event;
+					handler = state.handler;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until all events are handled, including delayed ones.
+	 */
+	void awaitIdle() throws InterruptedException {
+		synchronized (states) {
+			while (!states.isEmpty() || delayed > 0) {
+				states.wait();
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting events and waits until all queued events are handled, delayed events are dropped.
+	 */
+	void close() {
+		synchronized (states) {
+			closed = true;
+			delayed = 0;
+			states.notifyAll();
+		}
+		timer.shutdownNow();
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException ignored) {
+			}
+		}
+	}
+}
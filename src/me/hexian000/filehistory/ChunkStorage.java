@@ -0,0 +1,393 @@
+package me.hexian000.filehistory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits files into content-defined chunks and stores each distinct chunk once under its digest.
+ * The mirrored repository path of a version holds a small manifest listing its chunks.
+ * <p>
+ * Each chunk file starts with a flag byte telling whether the rest is compressed.
+ * <p>
+ * Garbage collection marks the chunks referenced by the manifests while backups go on, chunks referenced by versions
+ * stored meanwhile are recorded and kept by the sweep.
+ * <p>
+ * The bytes taken by all chunks are counted once on open, then kept up to date as chunks are written and removed.
+ */
+class ChunkStorage implements Storage {
+	private static final String MANIFEST_HEADER = "filehistory-manifest 1";
+	private static final int MIN_CHUNK = 16 * 1024;
+	private static final int MAX_CHUNK = 256 * 1024;
+	private static final long BOUNDARY_MASK = (1L << 16) - 1; // 64 KiB average
+	private static final long[] GEAR = new long[256];
+
+	static {
+		final Random random = new Random(0x6a09e667f3bcc908L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private static final int CHUNK_RAW = 0;
+	private static final int CHUNK_COMPRESSED = 1;
+
+	private final Path objects;
+	private final Compression compression;
+	private final Durability durability;
+	private final AtomicLong chunkBytes = new AtomicLong();
+	private Set<String> touched = null; // chunks stored during a collection, guarded by this
+
+	ChunkStorage(Path objects, Compression compression, Durability durability) throws IOException {
+		this.objects = objects;
+		this.compression = compression;
+		this.durability = durability;
+		Files.createDirectories(objects);
+		try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(objects)) {
+			for (Path prefix : prefixes) {
+				try (DirectoryStream<Path> chunks = Files.newDirectoryStream(prefix)) {
+					for (Path chunk : chunks) {
+						if (!chunk.getFileName().toString().endsWith(".tmp")) {
+							chunkBytes.addAndGet(Files.size(chunk));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		final StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return length of the first chunk in buf[0, len)
+	 */
+	private static int findBoundary(byte[] buf, int len) {
+		if (len <= MIN_CHUNK) {
+			return len;
+		}
+		final int end = Math.min(len, MAX_CHUNK);
+		long hash = 0;
+		for (int i = MIN_CHUNK; i < end; i++) {
+			hash = (hash << 1) + GEAR[buf[i] & 0xff];
+			if ((hash & BOUNDARY_MASK) == 0) {
+				return i + 1;
+			}
+		}
+		return end;
+	}
+
+	private Path chunkPath(String digest) {
+		return objects.resolve(digest.substring(0, 2)).resolve(digest);
+	}
+
+	private String writeChunk(MessageDigest md, byte[] buf, int len, boolean compress) throws IOException {
+		md.reset();
+		md.update(buf, 0, len);
+		final String digest = toHex(md.digest());
+		synchronized (this) {
+			if (touched != null) {
+				touched.add(digest);
+			}
+		}
+		final Path chunk = chunkPath(digest);
+		if (Files.exists(chunk)) {
+			return digest;
+		}
+		Files.createDirectories(chunk.getParent());
+		final Path temp = Files.createTempFile(chunk.getParent(), digest, ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(temp)) {
+				out.write(compress ? CHUNK_COMPRESSED : CHUNK_RAW);
+				try (OutputStream body = compress ? compression.compress(out) : out) {
+					body.write(buf, 0, len);
+				}
+			}
+			final long size = Files.size(temp);
+			durability.staged(temp); // may be referenced by versions recovered after a power loss
+			Files.move(temp, chunk, StandardCopyOption.ATOMIC_MOVE);
+			chunkBytes.addAndGet(size);
+			durability.created(chunk);
+		} catch (FileAlreadyExistsException ignored) {
+			// stored concurrently by another backup
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		return digest;
+	}
+
+	@Override
+	public boolean store(SourceFile source, Path target, Path previous) throws IOException {
+		final MessageDigest md = newDigest();
+		final boolean compress = compression.accepts(target);
+		final List<String> manifest = new ArrayList<>();
+		manifest.add(MANIFEST_HEADER);
+		final byte[] buf = new byte[MAX_CHUNK];
+		long size = 0;
+		int len = 0;
+		try (InputStream in = source.open()) {
+			boolean eof = false;
+			while (!eof || len > 0) {
+				while (!eof && len < buf.length) {
+					final int n = in.read(buf, len, buf.length - len);
+					if (n < 0) {
+						eof = true;
+					} else {
+						len += n;
+					}
+				}
+				if (len == 0) {
+					break;
+				}
+				final int cut = findBoundary(buf, len);
+				manifest.add(writeChunk(md, buf, cut, compress) + " " + cut);
+				size += cut;
+				System.arraycopy(buf, cut, buf, 0, len - cut);
+				len -= cut;
+			}
+		}
+		manifest.add(1, Long.toString(size));
+		Files.write(target, manifest, StandardCharsets.UTF_8);
+		Files.setLastModifiedTime(target, source.lastModified());
+		return false;
+	}
+
+	/**
+	 * @return false for a file that does not start with the manifest header, e.g. one not written by a backup
+	 */
+	private static boolean isManifest(Path file) throws IOException {
+		final byte[] header = MANIFEST_HEADER.getBytes(StandardCharsets.UTF_8);
+		try (InputStream in = Files.newInputStream(file)) {
+			return Arrays.equals(in.readNBytes(header.length), header);
+		}
+	}
+
+	private static List<String> readManifest(Path target) throws IOException {
+		final List<String> lines = Files.readAllLines(target, StandardCharsets.UTF_8);
+		if (lines.size() < 2 || !MANIFEST_HEADER.equals(lines.get(0))) {
+			throw new IOException("not a chunk manifest: " + target);
+		}
+		return lines.subList(2, lines.size());
+	}
+
+	private InputStream openChunk(String digest) throws IOException {
+		final Path chunk = chunkPath(digest);
+		final InputStream in = new BufferedInputStream(Files.newInputStream(chunk));
+		try {
+			switch (in.read()) {
+			case CHUNK_RAW:
+				return in;
+			case CHUNK_COMPRESSED:
+				return compression.decompress(in);
+			}
+			throw new IOException("corrupted chunk: " + chunk);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public InputStream open(Path target) throws IOException {
+		return new ChunkStream(readManifest(target).iterator());
+	}
+
+	/**
+	 * Concatenates the chunks of a manifest, opening each one when the previous one is exhausted.
+	 */
+	private final class ChunkStream extends InputStream {
+		private final Iterator<String> chunks;
+		private InputStream current = null;
+
+		ChunkStream(Iterator<String> chunks) {
+			this.chunks = chunks;
+		}
+
+		/**
+		 * @return false at the end of the last chunk
+		 */
+		private boolean next() throws IOException {
+			if (current != null) {
+				return true;
+			}
+			if (!chunks.hasNext()) {
+				return false;
+			}
+			final String line = chunks.next();
+			current = openChunk(line.substring(0, line.indexOf(' ')));
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			while (next()) {
+				final int b = current.read();
+				if (b >= 0) {
+					return b;
+				}
+				current.close();
+				current = null;
+			}
+			return -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (next()) {
+				final int n = current.read(b, off, len);
+				if (n > 0) {
+					return n;
+				}
+				current.close();
+				current = null;
+			}
+			return -1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+		}
+	}
+
+	@Override
+	public long size(Path target) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(target, StandardCharsets.UTF_8)) {
+			if (!MANIFEST_HEADER.equals(reader.readLine())) {
+				throw new IOException("not a chunk manifest: " + target);
+			}
+			try {
+				return Long.parseLong(reader.readLine());
+			} catch (NumberFormatException e) {
+				throw new IOException("corrupted chunk manifest: " + target);
+			}
+		}
+	}
+
+	@Override
+	public String baseOf(Path target) {
+		return null;
+	}
+
+	@Override
+	public long delete(Path target, Path previous, List<Path> dependents) throws IOException {
+		// chunks may be shared with other versions, they are reclaimed by collectGarbage
+		final long size = Files.size(target);
+		Files.delete(target);
+		return size;
+	}
+
+	/**
+	 * @return bytes taken on disk by all chunks
+	 */
+	long chunkBytes() {
+		return chunkBytes.get();
+	}
+
+	/**
+	 * Starts recording the chunks stored by new versions, called while no version is being stored.
+	 */
+	synchronized void beginCollection() {
+		touched = new HashSet<>();
+	}
+
+	/**
+	 * Stops recording after a failed collection.
+	 */
+	synchronized void abortCollection() {
+		touched = null;
+	}
+
+	/**
+	 * Collects the chunks referenced by the manifests under root, versions may be stored or deleted meanwhile.
+	 * Other files are skipped, but a manifest that can not be read fails the collection.
+	 */
+	Set<String> mark(Path root, Logger log) throws IOException {
+		final Set<String> referenced = new HashSet<>();
+		Files.walkFileTree(root, new SimpleFileVisitor<>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				return dir.startsWith(objects.getParent()) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				try {
+					if (!isManifest(file)) {
+						log.warning("Non repository file: {}", file);
+						return FileVisitResult.CONTINUE;
+					}
+					for (String line : readManifest(file)) {
+						referenced.add(line.substring(0, line.indexOf(' ')));
+					}
+				} catch (NoSuchFileException ignored) {
+					// deleted meanwhile
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+				if (e instanceof NoSuchFileException) {
+					return FileVisitResult.CONTINUE;
+				}
+				throw e;
+			}
+		});
+		return referenced;
+	}
+
+	/**
+	 * Removes chunks neither marked nor stored since {@link #beginCollection}, called while no version is being
+	 * stored.
+	 *
+	 * @return number of chunks removed
+	 */
+	int sweep(Set<String> referenced) throws IOException {
+		synchronized (this) {
+			referenced.addAll(touched);
+			touched = null;
+		}
+		int removed = 0;
+		try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(objects)) {
+			for (Path prefix : prefixes) {
+				try (DirectoryStream<Path> chunks = Files.newDirectoryStream(prefix)) {
+					for (Path chunk : chunks) {
+						final String name = chunk.getFileName().toString();
+						if (!name.endsWith(".tmp") && !referenced.contains(name)) {
+							final long size = Files.size(chunk);
+							Files.delete(chunk);
+							chunkBytes.addAndGet(-size);
+							removed++;
+						}
+					}
+				}
+			}
+		}
+		return removed;
+	}
+}
@@ -0,0 +1,17 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stream compression codec for stored versions. Additional codecs can be provided through
+ * {@link java.util.ServiceLoader}, they are selected by {@link #getName()} in the repository config.
+ */
+public interface Codec {
+	String getName();
+
+	OutputStream compress(OutputStream out) throws IOException;
+
+	InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,84 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Compression settings of a repository: the codec and the file extensions that are stored as is.
+ */
+class Compression {
+	static final String NONE = "none";
+	static final String DEFAULT_SKIP = "7z,apk,avi,bz2,docx,flac,gif,gz,jar,jpeg,jpg,lz4,mkv,mov,mp3,mp4,odt," +
+			"ogg,pdf,png,pptx,rar,tgz,webm,webp,xlsx,xz,zip,zst";
+
+	private final Codec codec;
+	private final Set<String> skip;
+
+	Compression(String codec, String skip) throws IOException {
+		this.codec = findCodec(codec);
+		this.skip = new HashSet<>();
+		for (String ext : skip.split(",")) {
+			ext = ext.trim().toLowerCase(Locale.ROOT);
+			if (!ext.isEmpty()) {
+				this.skip.add(ext);
+			}
+		}
+	}
+
+	private static Codec findCodec(String name) throws IOException {
+		if (NONE.equals(name)) {
+			return null;
+		}
+		final Codec deflate = new DeflateCodec();
+		if (deflate.getName().equals(name)) {
+			return deflate;
+		}
+		for (Codec codec : ServiceLoader.load(Codec.class)) {
+			if (codec.getName().equals(name)) {
+				return codec;
+			}
+		}
+		throw new IOException("unknown compression codec: " + name);
+	}
+
+	/**
+	 * @return name of the codec new versions are compressed with
+	 */
+	String getName() {
+		return codec != null ? codec.getName() : NONE;
+	}
+
+	/**
+	 * @return whether a file with this name should be compressed
+	 */
+	boolean accepts(Path file) {
+		if (codec == null) {
+			return false;
+		}
+		final String name = file.getFileName().toString();
+		final int dot = name.lastIndexOf('.');
+		return dot < 0 || !skip.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	OutputStream compress(OutputStream out) throws IOException {
+		return codec.compress(out);
+	}
+
+	InputStream decompress(InputStream in) throws IOException {
+		return codec.decompress(in);
+	}
+
+	/**
+	 * Decompresses with the named codec, which may differ from the configured one for older versions.
+	 */
+	InputStream decompress(String name, InputStream in) throws IOException {
+		if (codec != null && codec.getName().equals(name)) {
+			return codec.decompress(in);
+		}
+		final Codec other = findCodec(name);
+		return other != null ? other.decompress(in) : in;
+	}
+}
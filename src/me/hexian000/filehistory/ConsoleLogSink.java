@@ -0,0 +1,26 @@
+package me.hexian000.filehistory;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Writes records to a console stream, one flush per batch.
+ */
+public class ConsoleLogSink implements LogSink {
+	private final PrintStream out;
+	private final StringBuilder sb = new StringBuilder();
+
+	public ConsoleLogSink(PrintStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(List<LogRecord> batch) {
+		sb.setLength(0);
+		for (LogRecord record : batch) {
+			sb.append(record).append(System.lineSeparator());
+		}
+		out.print(sb);
+		out.flush();
+	}
+}
@@ -0,0 +1,143 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies whole files with the cheapest method the file systems support, falling back to the next one on failure:
+ * <ol>
+ * <li>reflink: copy-on-write clone on btrfs, xfs and the like, through "cp --reflink=always". Only tried for
+ * large files on the same file system. A file system is only given up on when cp reports that cloning is not
+ * supported, a timeout or any other failure falls back for that file alone.</li>
+ * <li>transfer: FileChannel.transferTo, which copies in the kernel where possible.</li>
+ * <li>stream: Files.copy.</li>
+ * </ol>
+ * The modification time of the source is kept.
+ */
+class Copier {
+	static final String AUTO = "auto";
+	static final String REFLINK = "reflink";
+	static final String TRANSFER = "transfer";
+	static final String STREAM = "stream";
+	/**
+	 * Smaller files are not worth starting a process for.
+	 */
+	private static final long REFLINK_MIN_SIZE = 1 << 20;
+	private static final boolean HAS_CP = System.getProperty("os.name", "").toLowerCase().startsWith("linux");
+
+	private final boolean reflink;
+	private final boolean transfer;
+	private final Map<Object, Boolean> reflinkSupported = new ConcurrentHashMap<>(); // by device
+
+	/**
+	 * @param mode AUTO tries every method, otherwise the named method is tried before falling back to STREAM
+	 */
+	Copier(String mode) {
+		switch (mode) {
+		case AUTO:
+			reflink = HAS_CP;
+			transfer = true;
+			break;
+		case REFLINK:
+			reflink = HAS_CP;
+			transfer = false;
+			break;
+		case TRANSFER:
+			reflink = false;
+			transfer = true;
+			break;
+		case STREAM:
+			reflink = false;
+			transfer = false;
+			break;
+		default:
+			throw new IllegalArgumentException("unknown copy method: " + mode);
+		}
+	}
+
+	private static Object deviceOf(Path path) {
+		try {
+			return Files.getAttribute(path, "unix:dev");
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	void copy(Path source, Path target) throws IOException {
+		final FileTime lastModified = Files.getLastModifiedTime(source);
+		if (reflink && tryReflink(source, target)) {
+			Files.setLastModifiedTime(target, lastModified);
+			return;
+		}
+		if (transfer) {
+			try {
+				transfer(source, target);
+				Files.setLastModifiedTime(target, lastModified);
+				return;
+			} catch (IOException e) {
+				Files.deleteIfExists(target);
+			}
+		}
+		Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private boolean tryReflink(Path source, Path target) throws IOException {
+		if (Files.size(source) < REFLINK_MIN_SIZE) {
+			return false;
+		}
+		final Object device = deviceOf(target.getParent());
+		if (device == null || !device.equals(deviceOf(source)) || !reflinkSupported.getOrDefault(device, true)) {
+			return false;
+		}
+		final ProcessBuilder builder = new ProcessBuilder("cp", "--reflink=always", "--", source.toString(),
+				target.toString()).redirectErrorStream(true);
+		builder.environment().put("LC_ALL", "C"); // for matching the message
+		final Process process = builder.start();
+		try {
+			if (!process.waitFor(1, TimeUnit.MINUTES)) {
+				process.destroyForcibly();
+			} else if (process.exitValue() == 0) {
+				reflinkSupported.put(device, true);
+				return true;
+			} else if (isUnsupported(new String(process.getInputStream().readAllBytes()))) {
+				reflinkSupported.put(device, false);
+			}
+		} catch (InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+		}
+		Files.deleteIfExists(target);
+		return false;
+	}
+
+	/**
+	 * @param message output of a failed cp, EOPNOTSUPP or ENOTTY from the clone ioctl
+	 */
+	private static boolean isUnsupported(String message) {
+		return message.contains("not supported") || message.contains("Inappropriate ioctl");
+	}
+
+	private static void transfer(Path source, Path target) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+		     FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				     StandardOpenOption.TRUNCATE_EXISTING)) {
+			final long size = in.size();
+			long position = 0;
+			while (position < size) {
+				final long n = in.transferTo(position, size - position, out);
+				if (n <= 0) {
+					break; // truncated while copying
+				}
+				position += n;
+			}
+		}
+	}
+}
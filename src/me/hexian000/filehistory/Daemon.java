@@ -0,0 +1,298 @@
+package me.hexian000.filehistory;
+
+import javax.management.JMException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Wires watchers, event filters and repositories together, without any user interface.
+ * <p>
+ * All watches share one event filter and all repositories share one pool of backup workers, events are routed to
+ * the repository of the innermost watch containing them.
+ * <p>
+ * A configuration file is a properties file:
+ * <pre>
+ * # repository.NAME = path, with repository options as repository.NAME.OPTION
+ * repository.main = /backup/files
+ * repository.main.storage = delta
+ * # watch.NAME = path, with watch options as watch.NAME.OPTION
+ * watch.docs = /home/user/docs
+ * watch.docs.repository = main
+ * </pre>
+ * Options without a prefix apply to every repository and watch. The quiet period, workers and queue options are
+ * only read from there.
+ */
+public class Daemon implements Closeable {
+	/**
+	 * Milliseconds a file must stay unchanged before it is backed up.
+	 */
+	public static final String OPTION_QUIET_PERIOD = Repository.OPTION_QUIET_PERIOD;
+	/**
+	 * Name of the repository a watch is backed up into.
+	 */
+	public static final String OPTION_REPOSITORY = "repository";
+	/**
+	 * Local port of the Prometheus endpoint at /metrics, disabled if unset.
+	 */
+	public static final String OPTION_METRICS_PORT = "metrics.port";
+	/**
+	 * Address the Prometheus endpoint listens on, loopback by default.
+	 */
+	public static final String OPTION_METRICS_HOST = "metrics.host";
+	/**
+	 * Whether metrics are registered as a JMX MBean, true by default.
+	 */
+	public static final String OPTION_METRICS_JMX = "metrics.jmx";
+	private static final String REPOSITORY = "repository.";
+	private static final String WATCH = "watch.";
+
+	private static final class Route {
+		final Path root;
+		final Repository repository;
+
+		Route(Path root, Repository repository) {
+			this.root = root;
+			this.repository = repository;
+		}
+	}
+
+	private final Logger log;
+	private final Properties defaults;
+	private final BackupQueue queue;
+	private final EventFilter filter;
+	private final Map<String, Repository> repositories = new LinkedHashMap<>();
+	private final List<Watcher> watchers = new CopyOnWriteArrayList<>();
+	private final Metrics metrics = new Metrics();
+	private final MetricsExporter exporter = new MetricsExporter(metrics);
+	private volatile Route[] routes = new Route[0]; // innermost root first
+	private final CountDownLatch closed = new CountDownLatch(1);
+	private boolean started = false;
+
+	/**
+	 * @param defaults options of every repository and watch
+	 */
+	public Daemon(Logger logger, Properties defaults) {
+		log = logger;
+		this.defaults = defaults;
+		queue = Repository.createQueue(defaults);
+		filter = new EventFilter(this::route,
+				Long.parseLong(defaults.getProperty(OPTION_QUIET_PERIOD, "30000")), 1000, metrics);
+		metrics.gauge("filehistory_queue_depth", "Backups waiting for a worker", "", queue::size);
+		metrics.gauge("filehistory_watches", "Directories watched", "",
+				() -> watchers.stream().mapToLong(Watcher::getWatchCount).sum());
+		metrics.counter("filehistory_watch_overflows_total", "Times events were lost and a rescan was needed", "",
+				() -> watchers.stream().mapToLong(Watcher::getOverflowCount).sum());
+		metrics.counter("filehistory_watch_recovered_total", "Changed files found by rescans after overflows", "",
+				() -> watchers.stream().mapToLong(Watcher::getRecoveredCount).sum());
+	}
+
+	public static Properties readConfig(Path config) throws IOException {
+		final Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(config)) {
+			properties.load(reader);
+		}
+		return properties;
+	}
+
+	/**
+	 * Opens all repositories and watches of a configuration file, watches are not started yet.
+	 */
+	public static Daemon load(Path config, Logger logger) throws IOException {
+		return load(readConfig(config), logger);
+	}
+
+	/**
+	 * @param properties content of a configuration file
+	 */
+	public static Daemon load(Properties properties, Logger logger) throws IOException {
+		final Properties defaults = new Properties();
+		final Map<String, Properties> repositoryOptions = new TreeMap<>(), watchOptions = new TreeMap<>();
+		for (String key : properties.stringPropertyNames()) {
+			final String value = properties.getProperty(key);
+			if (key.startsWith(REPOSITORY)) {
+				section(repositoryOptions, key.substring(REPOSITORY.length()), value);
+			} else if (key.startsWith(WATCH)) {
+				section(watchOptions, key.substring(WATCH.length()), value);
+			} else {
+				defaults.setProperty(key, value);
+			}
+		}
+		final Daemon daemon = new Daemon(logger, defaults);
+		try {
+			for (Map.Entry<String, Properties> item : repositoryOptions.entrySet()) {
+				daemon.addRepository(item.getKey(), item.getValue().getProperty(""), item.getValue());
+			}
+			for (Map.Entry<String, Properties> item : watchOptions.entrySet()) {
+				daemon.addWatch(item.getValue().getProperty(""),
+						item.getValue().getProperty(OPTION_REPOSITORY), item.getValue());
+			}
+		} catch (IOException | RuntimeException e) {
+			daemon.close();
+			throw e;
+		}
+		return daemon;
+	}
+
+	/**
+	 * Adds "NAME" or "NAME.OPTION" to the options of NAME, the path is stored as the empty option.
+	 */
+	private static void section(Map<String, Properties> sections, String key, String value) {
+		final int dot = key.indexOf('.');
+		final String name = dot < 0 ? key : key.substring(0, dot);
+		sections.computeIfAbsent(name, k -> new Properties())
+				.setProperty(dot < 0 ? "" : key.substring(dot + 1), value);
+	}
+
+	private Properties withDefaults(Properties options) {
+		final Properties result = new Properties(defaults);
+		for (String key : options.stringPropertyNames()) {
+			result.setProperty(key, options.getProperty(key));
+		}
+		return result;
+	}
+
+	/**
+	 * @param options see Repository.OPTION_*, on top of the daemon defaults
+	 */
+	public synchronized Repository addRepository(String name, String path, Properties options) throws IOException {
+		if (path == null || path.isEmpty()) {
+			throw new IllegalArgumentException("repository " + name + " has no path");
+		}
+		if (repositories.containsKey(name)) {
+			throw new IllegalArgumentException("duplicated repository: " + name);
+		}
+		final Repository repository = new Repository(path, log, withDefaults(options), queue, metrics);
+		repositories.put(name, repository);
+		metrics.gauge("filehistory_repository_bytes", "Total size of all versions in a repository",
+				"repository=\"" + name + "\"", repository::getStoredSize);
+		return repository;
+	}
+
+	private boolean route(WatcherEvent event) {
+		for (Route route : routes) {
+			if (event.getPath().startsWith(route.root)) {
+				return route.repository.offer(event);
+			}
+		}
+		return true; // watch removed
+	}
+
+	private void setRoutes(List<Route> list) {
+		list.sort(Comparator.comparingInt((Route route) -> route.root.getNameCount()).reversed());
+		routes = list.toArray(new Route[0]);
+	}
+
+	/**
+	 * Scans a directory and prepares watching it, it is watched after {@link #start}.
+	 *
+	 * @param options see Watcher.OPTION_*, on top of the daemon defaults
+	 */
+	public synchronized Watcher addWatch(String path, String repositoryName, Properties options) throws IOException {
+		final Repository repository = repositories.get(repositoryName);
+		if (repository == null) {
+			throw new IllegalArgumentException("unknown repository: " + repositoryName);
+		}
+		if (path == null || path.isEmpty()) {
+			throw new IllegalArgumentException("watch has no path");
+		}
+		final Path watch = Paths.get(path).toAbsolutePath().normalize();
+		final Path repo = repository.getRoot().normalize();
+		if (watch.startsWith(repo) || repo.startsWith(watch)) {
+			throw new IllegalArgumentException("repository and watch must not contain each other: " + path);
+		}
+		final List<Route> list = new ArrayList<>(Arrays.asList(routes));
+		final Route route = new Route(watch, repository);
+		list.add(route);
+		setRoutes(list); // before the initial scan reports files
+		final Watcher watcher;
+		try {
+			watcher = new Watcher(watch.toString(), filter, log, repository.getScanState(), withDefaults(options));
+		} catch (IOException | RuntimeException e) {
+			list.remove(route);
+			setRoutes(list);
+			throw e;
+		}
+		log.info("{} watches created.", watcher.getWatchCount());
+		watchers.add(watcher);
+		if (started) {
+			watcher.start();
+		}
+		return watcher;
+	}
+
+	public synchronized Repository getRepository(String name) {
+		return repositories.get(name);
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Starts all watches and the metrics exporters, a failed exporter is only logged.
+	 */
+	public synchronized void start() {
+		if (started) {
+			return;
+		}
+		started = true;
+		try {
+			if (Boolean.parseBoolean(defaults.getProperty(OPTION_METRICS_JMX, "true"))) {
+				exporter.registerMBean();
+			}
+			final String port = defaults.getProperty(OPTION_METRICS_PORT);
+			if (port != null) {
+				exporter.startHttp(defaults.getProperty(OPTION_METRICS_HOST, "127.0.0.1"), Integer.parseInt(port));
+				final InetSocketAddress address = exporter.getHttpAddress();
+				log.info("Metrics at http://{}:{}/metrics", address.getHostString(), address.getPort());
+			}
+		} catch (IOException | JMException e) {
+			e.printStackTrace();
+			log.error("Metrics export failed: {}", e.getMessage());
+		}
+		for (Watcher watcher : watchers) {
+			watcher.start();
+		}
+	}
+
+	/**
+	 * Blocks until {@link #close} is called.
+	 */
+	public void awaitClose() throws InterruptedException {
+		closed.await();
+	}
+
+	/**
+	 * Stops all watches, and closes repositories after their queued backups are done.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed.getCount() == 0) {
+			return;
+		}
+		for (Watcher watcher : watchers) {
+			watcher.interrupt();
+		}
+		for (Watcher watcher : watchers) {
+			try {
+				watcher.join();
+			} catch (InterruptedException ignored) {
+			}
+		}
+		exporter.close();
+		filter.close();
+		queue.close();
+		for (Repository repository : repositories.values()) {
+			repository.close();
+		}
+		closed.countDown();
+	}
+}
@@ -0,0 +1,37 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+class DeflateCodec implements Codec {
+	private static final int BUFFER_SIZE = 65536;
+
+	@Override
+	public String getName() {
+		return "deflate";
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out) {
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	@Override
+	public InputStream decompress(InputStream in) {
+		return new InflaterInputStream(in);
+	}
+}
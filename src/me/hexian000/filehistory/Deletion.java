@@ -0,0 +1,48 @@
+package me.hexian000.filehistory;
+
+import java.nio.file.Path;
+
+/**
+ * A file deleted or renamed away, as found by {@link Repository#listDeleted}.
+ */
+public class Deletion {
+	private final Path path;
+	private final long time;
+	private final Path renamedTo;
+	private final long lastVersion;
+
+	Deletion(Path path, long time, Path renamedTo, long lastVersion) {
+		this.path = path;
+		this.time = time;
+		this.renamedTo = renamedTo;
+		this.lastVersion = lastVersion;
+	}
+
+	/**
+	 * @return source path, with names as sanitized in the repository
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return time the deletion was noticed
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return new path if the file was renamed, otherwise null
+	 */
+	public Path getRenamedTo() {
+		return renamedTo;
+	}
+
+	/**
+	 * @return time of the latest version before the deletion, or -1 if there is none
+	 */
+	public long getLastVersion() {
+		return lastVersion;
+	}
+}
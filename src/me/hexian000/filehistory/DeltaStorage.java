@@ -0,0 +1,424 @@
+package me.hexian000.filehistory;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores each version as an rsync style binary delta against the previous version of the same file.
+ * Every {@code keyframeInterval} versions, or when a delta would not be much smaller, a full keyframe is stored
+ * instead, which bounds the number of deltas applied to rebuild a version.
+ * <p>
+ * Deltas reference their base by file name, the base is always a sibling in the same mirrored directory. The version
+ * index records the base of each delta too, so the deltas to rewrite when a version is deleted are found directly.
+ * They are rewritten against the version before the deleted one, or as keyframes if that would make their chain
+ * longer.
+ */
+class DeltaStorage implements Storage {
+	private static final int MAGIC = 0x46484454; // FHDT
+	private static final byte TYPE_KEYFRAME = 0;
+	private static final byte TYPE_DELTA = 1;
+	private static final byte OP_COPY = 1;
+	private static final byte OP_DATA = 2;
+	private static final byte OP_END = 0;
+	private static final int BLOCK = 4096;
+	private static final int LITERAL_MAX = 64 * 1024;
+
+	private static final class Header {
+		byte type;
+		boolean compressed;
+		long size;
+		int depth;
+		String base;
+	}
+
+	private final Path temp;
+	private final int keyframeInterval;
+	private final Compression compression;
+	private final Durability durability;
+
+	DeltaStorage(Path temp, int keyframeInterval, Compression compression, Durability durability)
+			throws IOException {
+		this.temp = temp;
+		this.keyframeInterval = keyframeInterval;
+		this.compression = compression;
+		this.durability = durability;
+		Files.createDirectories(temp);
+	}
+
+	private static Header readHeader(DataInputStream in, Path target) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a delta storage file: " + target);
+		}
+		final Header header = new Header();
+		header.type = in.readByte();
+		header.compressed = in.readBoolean();
+		header.size = in.readLong();
+		if (header.type == TYPE_DELTA) {
+			header.depth = in.readInt();
+			header.base = in.readUTF();
+		}
+		return header;
+	}
+
+	private static Header readHeader(Path target) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(target)))) {
+			return readHeader(in, target);
+		}
+	}
+
+	private DataOutputStream writeHeader(Path target, byte type, long size, int depth, String base)
+			throws IOException {
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(target)));
+		final boolean compressed = compression.accepts(target);
+		out.writeInt(MAGIC);
+		out.writeByte(type);
+		out.writeBoolean(compressed);
+		out.writeLong(size);
+		if (type == TYPE_DELTA) {
+			out.writeInt(depth);
+			out.writeUTF(base);
+		}
+		return compressed ? new DataOutputStream(compression.compress(out)) : out;
+	}
+
+	private static long strongHash(MessageDigest md, byte[] buf, int off) {
+		md.reset();
+		md.update(buf, off, BLOCK);
+		final byte[] d = md.digest();
+		long h = 0;
+		for (int i = 0; i < 8; i++) {
+			h = (h << 8) | (d[i] & 0xff);
+		}
+		return h;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Block signatures of base: weak rolling checksum to block indices, verified by strong hash.
+	 */
+	private static final class Signature {
+		final Map<Integer, long[]> blocks = new HashMap<>(); // weak -> {index, strong, index, strong, ...}
+
+		Signature(Path base) throws IOException {
+			final MessageDigest md = newDigest();
+			final byte[] buf = new byte[BLOCK];
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(base))) {
+				for (long index = 0; in.readNBytes(buf, 0, BLOCK) == BLOCK; index++) {
+					final int weak = weakHash(buf, 0);
+					final long[] old = blocks.get(weak);
+					final long[] entry;
+					if (old == null) {
+						entry = new long[2];
+					} else {
+						entry = Arrays.copyOf(old, old.length + 2);
+					}
+					entry[entry.length - 2] = index;
+					entry[entry.length - 1] = strongHash(md, buf, 0);
+					blocks.put(weak, entry);
+				}
+			}
+		}
+
+		long find(int weak, MessageDigest md, byte[] buf, int off) {
+			final long[] entry = blocks.get(weak);
+			if (entry == null) {
+				return -1;
+			}
+			final long strong = strongHash(md, buf, off);
+			for (int i = 0; i < entry.length; i += 2) {
+				if (entry[i + 1] == strong) {
+					return entry[i];
+				}
+			}
+			return -1;
+		}
+	}
+
+	private static int weakHash(byte[] buf, int off) {
+		int a = 0, b = 0;
+		for (int i = 0; i < BLOCK; i++) {
+			a += buf[off + i] & 0xff;
+			b += (BLOCK - i) * (buf[off + i] & 0xff);
+		}
+		return (a & 0xffff) | (b << 16);
+	}
+
+	private static final class DeltaWriter {
+		private final DataOutputStream out;
+		private long copyOffset = -1, copyLength = 0;
+		long written = 0;
+
+		DeltaWriter(DataOutputStream out) {this.out = out;}
+
+		void copy(long offset, long length) throws IOException {
+			if (copyOffset >= 0 && copyOffset + copyLength == offset) {
+				copyLength += length;
+				return;
+			}
+			flushCopy();
+			copyOffset = offset;
+			copyLength = length;
+		}
+
+		void data(byte[] buf, int off, int len) throws IOException {
+			if (len <= 0) {
+				return;
+			}
+			flushCopy();
+			out.writeByte(OP_DATA);
+			out.writeInt(len);
+			out.write(buf, off, len);
+			written += len;
+		}
+
+		private void flushCopy() throws IOException {
+			if (copyOffset >= 0) {
+				out.writeByte(OP_COPY);
+				out.writeLong(copyOffset);
+				out.writeLong(copyLength);
+				copyOffset = -1;
+			}
+		}
+
+		void finish() throws IOException {
+			flushCopy();
+			out.writeByte(OP_END);
+		}
+	}
+
+	private static void encodeDelta(Signature signature, InputStream in, DeltaWriter writer) throws IOException {
+		final MessageDigest md = newDigest();
+		final byte[] buf = new byte[LITERAL_MAX + BLOCK * 2 + 65536];
+		int filled = 0, pos = 0, literal = 0;
+		boolean eof = false;
+		boolean rolling = false;
+		int a = 0, b = 0;
+		while (true) {
+			if (pos + BLOCK >= filled && !eof) {
+				if (literal > 0) {
+					System.arraycopy(buf, literal, buf, 0, filled - literal);
+					filled -= literal;
+					pos -= literal;
+					literal = 0;
+				}
+				final int n = in.read(buf, filled, buf.length - filled);
+				if (n < 0) {
+					eof = true;
+				} else {
+					filled += n;
+				}
+				continue;
+			}
+			if (pos + BLOCK > filled) {
+				break;
+			}
+			if (!rolling) {
+				a = 0;
+				b = 0;
+				for (int i = 0; i < BLOCK; i++) {
+					a += buf[pos + i] & 0xff;
+					b += (BLOCK - i) * (buf[pos + i] & 0xff);
+				}
+				rolling = true;
+			}
+			final long block = signature.find((a & 0xffff) | (b << 16), md, buf, pos);
+			if (block >= 0) {
+				writer.data(buf, literal, pos - literal);
+				writer.copy(block * BLOCK, BLOCK);
+				pos += BLOCK;
+				literal = pos;
+				rolling = false;
+				continue;
+			}
+			if (pos + BLOCK >= filled) {
+				if (!eof) {
+					continue; // refill before rolling past the buffer
+				}
+				break;
+			}
+			final int out = buf[pos] & 0xff, in2 = buf[pos + BLOCK] & 0xff;
+			a += in2 - out;
+			b += a - BLOCK * out;
+			pos++;
+			if (pos - literal >= LITERAL_MAX) {
+				writer.data(buf, literal, pos - literal);
+				literal = pos;
+			}
+		}
+		writer.data(buf, literal, filled - literal);
+	}
+
+	private static void applyDelta(RandomAccessFile base, DataInputStream in, OutputStream out) throws IOException {
+		final byte[] buf = new byte[65536];
+		while (true) {
+			final byte op = in.readByte();
+			if (op == OP_END) {
+				return;
+			} else if (op == OP_COPY) {
+				long offset = in.readLong(), length = in.readLong();
+				base.seek(offset);
+				while (length > 0) {
+					final int n = (int) Math.min(buf.length, length);
+					base.readFully(buf, 0, n);
+					out.write(buf, 0, n);
+					length -= n;
+				}
+			} else if (op == OP_DATA) {
+				int length = in.readInt();
+				while (length > 0) {
+					final int n = Math.min(buf.length, length);
+					in.readFully(buf, 0, n);
+					out.write(buf, 0, n);
+					length -= n;
+				}
+			} else {
+				throw new IOException("corrupted delta");
+			}
+		}
+	}
+
+	/**
+	 * @return extension including the dot, so a temporary file is compressed the same way as file
+	 */
+	private static String extensionOf(Path file) {
+		final String name = file.getFileName().toString();
+		final int dot = name.lastIndexOf('.');
+		return dot < 0 ? "" : name.substring(dot);
+	}
+
+	/**
+	 * Rebuilds a version into a temporary file.
+	 */
+	private Path materialize(Path target) throws IOException {
+		final Path result = Files.createTempFile(temp, "restore", ".tmp");
+		try (DataInputStream raw = new DataInputStream(new BufferedInputStream(Files.newInputStream(target)));
+		     OutputStream out = new BufferedOutputStream(Files.newOutputStream(result))) {
+			final Header header = readHeader(raw, target);
+			final DataInputStream in = header.compressed ? new DataInputStream(compression.decompress(raw)) : raw;
+			if (header.type == TYPE_KEYFRAME) {
+				in.transferTo(out);
+			} else {
+				final Path base = materialize(target.resolveSibling(header.base));
+				try (RandomAccessFile raf = new RandomAccessFile(base.toFile(), "r")) {
+					applyDelta(raf, in, out);
+				} finally {
+					Files.delete(base);
+				}
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(result);
+			throw e;
+		}
+		return result;
+	}
+
+	private void writeKeyframe(SourceFile source, Path target) throws IOException {
+		try (DataOutputStream out = writeHeader(target, TYPE_KEYFRAME, source.size(), 0, null);
+		     InputStream in = source.open()) {
+			in.transferTo(out);
+		}
+	}
+
+	@Override
+	public boolean store(SourceFile source, Path target, Path previous) throws IOException {
+		final int depth = depthAfter(previous);
+		final boolean delta = depth < keyframeInterval && writeDelta(source, target, previous, depth);
+		if (!delta) {
+			writeKeyframe(source, target);
+		}
+		Files.setLastModifiedTime(target, source.lastModified());
+		return delta;
+	}
+
+	/**
+	 * @return depth of a delta against previous, keyframeInterval if there is none
+	 */
+	private int depthAfter(Path previous) throws IOException {
+		return previous != null && Files.exists(previous) ? readHeader(previous).depth + 1 : keyframeInterval;
+	}
+
+	/**
+	 * @return false if a delta is not worth it, a keyframe should be written instead
+	 */
+	private boolean writeDelta(SourceFile source, Path target, Path previous, int depth) throws IOException {
+		final Path base = materialize(previous);
+		try {
+			final long size = source.size();
+			final DeltaWriter writer;
+			try (DataOutputStream out = writeHeader(target, TYPE_DELTA, size, depth,
+					previous.getFileName().toString());
+			     InputStream in = source.open()) {
+				writer = new DeltaWriter(out);
+				encodeDelta(new Signature(base), in, writer);
+				writer.finish();
+			}
+			return writer.written <= size / 2; // else the source is read again
+		} finally {
+			Files.delete(base);
+		}
+	}
+
+	@Override
+	public InputStream open(Path target) throws IOException {
+		final Path result = materialize(target);
+		return Files.newInputStream(result, StandardOpenOption.DELETE_ON_CLOSE);
+	}
+
+	@Override
+	public long size(Path target) throws IOException {
+		return readHeader(target).size;
+	}
+
+	@Override
+	public String baseOf(Path target) throws IOException {
+		return readHeader(target).base;
+	}
+
+	@Override
+	public long delete(Path target, Path previous, List<Path> dependents) throws IOException {
+		final String name = target.getFileName().toString();
+		final int depth = depthAfter(previous);
+		long freed = Files.size(target);
+		for (Path dependent : dependents) {
+			final Header header = readHeader(dependent);
+			if (!name.equals(header.base)) {
+				continue;
+			}
+			// rewritten aside and moved over, so the dependent is never left half written
+			final FileTime lastModified = Files.getLastModifiedTime(dependent);
+			final Path full = materialize(dependent);
+			final Path rewritten = temp.resolve(full.getFileName() + extensionOf(dependent));
+			try {
+				final SourceFile source = SourceFile.of(full);
+				// versions based on the dependent recorded its depth, so it must not grow
+				if (depth > header.depth || !writeDelta(source, rewritten, previous, depth)) {
+					writeKeyframe(source, rewritten);
+				}
+				Files.setLastModifiedTime(rewritten, lastModified);
+				freed += Files.size(dependent) - Files.size(rewritten);
+				Files.move(rewritten, dependent, StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+				durability.created(dependent);
+			} finally {
+				Files.delete(full);
+				Files.deleteIfExists(rewritten);
+			}
+		}
+		Files.delete(target);
+		return freed;
+	}
+}
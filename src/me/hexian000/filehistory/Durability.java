@@ -0,0 +1,198 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides when written repository files are flushed to disk:
+ * <ul>
+ * <li>file: every file is synced as soon as it is written.</li>
+ * <li>batch: files written within an interval are synced together by a background thread, a crash may lose the
+ * backups of the last interval.</li>
+ * <li>none: left to the operating system.</li>
+ * </ul>
+ */
+class Durability extends Thread {
+	static final String FILE = "file";
+	static final String BATCH = "batch";
+	static final String NONE = "none";
+
+	interface Action {
+		void run() throws IOException;
+	}
+
+	private final String mode;
+	private final long interval;
+	private final Logger log;
+	private Set<Path> files = new LinkedHashSet<>();
+	private Set<Path> dirs = new LinkedHashSet<>();
+	private List<Action> actions = new ArrayList<>();
+
+	/**
+	 * @param interval milliseconds between two syncs in batch mode
+	 */
+	Durability(String mode, long interval, Logger logger) {
+		super("Durability");
+		setDaemon(true);
+		switch (mode) {
+		case FILE:
+		case BATCH:
+		case NONE:
+			break;
+		default:
+			throw new IllegalArgumentException("unknown durability: " + mode);
+		}
+		this.mode = mode;
+		this.interval = interval;
+		log = logger;
+		if (BATCH.equals(mode)) {
+			start();
+		}
+	}
+
+	private static void force(Path file) throws IOException {
+		// stored versions may be read-only, syncing does not need write access
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			ch.force(true);
+		} catch (NoSuchFileException ignored) {
+			// deleted in the meantime
+		}
+	}
+
+	private static void forceDirectory(Path dir) {
+		try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+			ch.force(true);
+		} catch (IOException ignored) {
+			// directories can not be opened on some platforms, renames are durable there anyway
+		}
+	}
+
+	/**
+	 * Syncs a write-ahead log right away in every mode but none, so it is on disk before what it describes.
+	 */
+	void writeAhead(Action force) throws IOException {
+		if (!NONE.equals(mode)) {
+			force.run();
+		}
+	}
+
+	/**
+	 * Syncs a staged file right away in every mode but none, before it is moved into place under a write-ahead
+	 * record. After a power loss, the record alone can not tell a complete file from one of the same length whose
+	 * content never reached the disk.
+	 */
+	void staged(Path file) throws IOException {
+		if (!NONE.equals(mode)) {
+			force(file);
+		}
+	}
+
+	/**
+	 * The content of file was modified.
+	 */
+	void written(Path file) throws IOException {
+		if (FILE.equals(mode)) {
+			force(file);
+		} else if (BATCH.equals(mode)) {
+			synchronized (this) {
+				files.add(file);
+			}
+		}
+	}
+
+	/**
+	 * File was created, renamed or replaced, its directory entry is synced as well.
+	 */
+	void created(Path file) throws IOException {
+		if (FILE.equals(mode)) {
+			force(file);
+			forceDirectory(file.getParent());
+		} else if (BATCH.equals(mode)) {
+			synchronized (this) {
+				files.add(file);
+				dirs.add(file.getParent());
+			}
+		}
+	}
+
+	/**
+	 * Runs action once everything written so far is synced, immediately unless in batch mode.
+	 */
+	void afterSync(Action action) throws IOException {
+		if (BATCH.equals(mode)) {
+			synchronized (this) {
+				actions.add(action);
+			}
+			return;
+		}
+		action.run();
+	}
+
+	/**
+	 * A file that fails to sync is logged and does not keep the rest of the batch from being synced.
+	 */
+	private void sync() {
+		final Set<Path> files, dirs;
+		final List<Action> actions;
+		synchronized (this) {
+			files = this.files;
+			dirs = this.dirs;
+			actions = this.actions;
+			this.files = new LinkedHashSet<>();
+			this.dirs = new LinkedHashSet<>();
+			this.actions = new ArrayList<>();
+		}
+		for (Path file : files) {
+			try {
+				force(file);
+			} catch (IOException e) {
+				e.printStackTrace();
+				log.error("Sync failed: {} - {}", file, e.getMessage());
+			}
+		}
+		for (Path dir : dirs) {
+			forceDirectory(dir);
+		}
+		for (Action action : actions) {
+			try {
+				action.run();
+			} catch (IOException e) {
+				e.printStackTrace();
+				log.error("Sync failed: {}", e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!isInterrupted()) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				break;
+			}
+			sync();
+		}
+	}
+
+	/**
+	 * Stops the batch thread and syncs what is left.
+	 */
+	void close() {
+		if (isAlive()) {
+			interrupt();
+			try {
+				join();
+			} catch (InterruptedException ignored) {
+			}
+		}
+		sync();
+	}
+}
@@ -1,35 +1,82 @@
 package me.hexian000.filehistory;
 
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.file.Path;
+import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
+/**
+ * Debounces events per path: an event is emitted once its path has been quiet for the quiet period.
+ * <p>
+ * Pending paths are kept in a timing wheel with one bucket per tick, so a tick only visits paths that are due.
+ * An event refused by the consumer stays pending in the bucket of the next tick.
+ */
 public class EventFilter implements Consumer<WatcherEvent> {
-	private static final long TIMEOUT = 30000; // 30 seconds
-	private final Timer timeout;
-	private final Map<String, WatcherEvent> fileMap;
+	private static final long QUIET_PERIOD = 30000; // 30 seconds
+	private static final long TICK = 1000;
+	private final Timer timer;
+	private final Predicate<WatcherEvent> consumer;
+	private final long quietPeriod;
+	private final long tick;
+	private final Map<Path, WatcherEvent> fileMap = new HashMap<>();
+	private final List<Set<Path>> wheel;
+	private long lastTick;
 	private boolean closed = false;
+	private final Metrics.Counter[] received = new Metrics.Counter[WatcherEvent.EVENT_MODIFY + 1];
+	private final Metrics.Counter coalesced, emitted, deferred;
 
-	public EventFilter(final Consumer<WatcherEvent> consumer) {
-		fileMap = new ConcurrentHashMap<>();
-		timeout = new Timer();
-		timeout.scheduleAtFixedRate(new TimerTask() {
+	public EventFilter(final Predicate<WatcherEvent> consumer) {
+		this(consumer, QUIET_PERIOD, TICK);
+	}
+
+	public EventFilter(final Predicate<WatcherEvent> consumer, long quietPeriod, long tick) {
+		this(consumer, quietPeriod, tick, new Metrics());
+	}
+
+	/**
+	 * @param consumer    returns false when it can not take the event now, the event is offered again on next tick
+	 * @param quietPeriod milliseconds a path must stay unchanged before its event is emitted
+	 * @param tick        timer resolution in milliseconds
+	 */
+	EventFilter(final Predicate<WatcherEvent> consumer, long quietPeriod, long tick, Metrics metrics) {
+		this.consumer = consumer;
+		received[WatcherEvent.EVENT_CREATE] = metrics.counter("filehistory_events_total",
+				"Events received from watches", "kind=\"create\"");
+		received[WatcherEvent.EVENT_DELETE] = metrics.counter("filehistory_events_total",
+				"Events received from watches", "kind=\"delete\"");
+		received[WatcherEvent.EVENT_MODIFY] = metrics.counter("filehistory_events_total",
+				"Events received from watches", "kind=\"modify\"");
+		coalesced = metrics.counter("filehistory_events_coalesced_total",
+				"Events merged into a pending event of the same path", "");
+		emitted = metrics.counter("filehistory_events_emitted_total", "Events emitted after the quiet period", "");
+		deferred = metrics.counter("filehistory_events_deferred_total",
+				"Emitted events refused by a full backup queue and retried", "");
+		metrics.gauge("filehistory_events_pending", "Paths waiting for their quiet period", "", this::size);
+		this.quietPeriod = quietPeriod;
+		this.tick = tick;
+		final int buckets = (int) (quietPeriod / tick) + 2;
+		wheel = new ArrayList<>(buckets);
+		for (int i = 0; i < buckets; i++) {
+			wheel.add(new HashSet<>());
+		}
+		lastTick = System.currentTimeMillis() / tick;
+		timer = new Timer("EventFilter", true);
+		timer.scheduleAtFixedRate(new TimerTask() {
 			@Override
 			public void run() {
-				synchronized (timeout) {
-					fileMap.entrySet().removeIf((item) -> {
-						final WatcherEvent event = item.getValue();
-						if (System.currentTimeMillis() - event.timestamp > TIMEOUT) {
-							consumer.accept(event);
-							return true;
-						}
-						return false;
-					});
+				synchronized (timer) {
+					advance(System.currentTimeMillis());
 				}
 			}
-		}, 5000, 5000);
+		}, tick, tick);
+	}
+
+	private Set<Path> bucket(long deadlineTick) {
+		return wheel.get((int) (deadlineTick % wheel.size()));
+	}
+
+	private long deadlineTick(WatcherEvent event) {
+		return (event.timestamp + quietPeriod) / tick + 1;
 	}
 
 	@Override
@@ -37,20 +84,75 @@ public class EventFilter implements Consumer<WatcherEvent> {
 		if (closed) {
 			throw new IllegalStateException("EventFilter is closed");
 		}
-		WatcherEvent item = fileMap.get(watcherEvent.getPath());
-		if (item == null) {
-			fileMap.put(watcherEvent.getPath(), watcherEvent);
-		} else {
-			item.update(watcherEvent);
+		received[watcherEvent.getEvent()].inc();
+		synchronized (fileMap) {
+			WatcherEvent item = fileMap.get(watcherEvent.getPath());
+			if (item == null) {
+				item = watcherEvent;
+				fileMap.put(item.getPath(), item);
+			} else {
+				coalesced.inc();
+				bucket(deadlineTick(item)).remove(item.getPath());
+				item.update(watcherEvent);
+			}
+			bucket(deadlineTick(item)).add(item.getPath());
+		}
+	}
+
+	public int size() {
+		synchronized (fileMap) {
+			return fileMap.size();
+		}
+	}
+
+	private void advance(long now) {
+		final long current = now / tick;
+		final List<WatcherEvent> due = new ArrayList<>();
+		synchronized (fileMap) {
+			// after a stall longer than one revolution, every bucket is visited once
+			for (long t = Math.max(lastTick + 1, current - wheel.size() + 1); t <= current; t++) {
+				final Set<Path> bucket = bucket(t);
+				final Iterator<Path> it = bucket.iterator();
+				while (it.hasNext()) {
+					final WatcherEvent event = fileMap.get(it.next());
+					if (event == null) {
+						it.remove(); // emitted from another bucket
+					} else if (now - event.timestamp > quietPeriod) {
+						it.remove();
+						fileMap.remove(event.getPath());
+						due.add(event);
+					} else if (bucket(deadlineTick(event)) != bucket) {
+						it.remove(); // a retry updated by a newer event, which is in its own bucket
+					}
+				}
+			}
+			lastTick = current;
+		}
+		for (WatcherEvent event : due) {
+			if (consumer.test(event)) {
+				emitted.inc();
+			} else {
+				deferred.inc();
+				synchronized (fileMap) {
+					if (fileMap.putIfAbsent(event.getPath(), event) == null) {
+						bucket(lastTick + 1).add(event.getPath());
+					}
+				}
+			}
 		}
 	}
 
 	public void close() {
 		if (!closed) {
 			closed = true;
-			timeout.cancel();
-			synchronized (timeout) { // wait until timer task finished
-				fileMap.clear();
+			timer.cancel();
+			synchronized (timer) { // wait until timer task finished
+				synchronized (fileMap) {
+					fileMap.clear();
+					for (Set<Path> bucket : wheel) {
+						bucket.clear();
+					}
+				}
 			}
 		}
 	}
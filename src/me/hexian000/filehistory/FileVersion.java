@@ -0,0 +1,66 @@
+package me.hexian000.filehistory;
+
+import java.util.Objects;
+
+/**
+ * A stored version of a file, as listed by {@link Repository#listVersions(java.io.File, int, int)}. It identifies
+ * the version under the name the file had when it was stored.
+ */
+public class FileVersion {
+	final String key;
+	private final long time;
+	private final long size;
+	private final String digest;
+
+	FileVersion(String key, VersionIndex.Entry entry) {
+		this.key = key;
+		time = entry.time;
+		size = entry.size;
+		digest = entry.digest;
+	}
+
+	/**
+	 * @return modification time of the file when stored
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return size of the file when stored
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return "algorithm:hex" digest of the content, or null if not computed
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * @return true if both versions are known to have the same content
+	 */
+	public boolean hasSameContent(FileVersion other) {
+		return digest != null && digest.equals(other.digest);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof FileVersion)) {
+			return false;
+		}
+		final FileVersion other = (FileVersion) o;
+		return time == other.time && key.equals(other.key);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(key, time);
+	}
+}
@@ -0,0 +1,256 @@
+package me.hexian000.filehistory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.regex.Pattern;
+
+/**
+ * Include and exclude rules in gitignore syntax, matched against paths relative to the watched directory with '/'
+ * as separator.
+ * <p>
+ * Supported: "#" comments, "!" negation, trailing "/" for directories only, patterns containing "/" anchored to
+ * the root, "*", "?", "[...]" and "**". As in gitignore, the last matching rule wins. Exclusion is inherited:
+ * anything under an excluded directory is excluded.
+ * <p>
+ * If there are include rules, only files matching them are accepted, directories are always traversed.
+ */
+class IgnoreRules {
+	private static final class Rule {
+		final boolean negate;
+		final boolean dirOnly;
+		final boolean anchored; // matched against the whole relative path instead of the name
+		final String glob;
+		final String literal; // no wildcards
+		final String suffix; // "*" followed by no wildcards, e.g. "*.log"
+		final Pattern pattern;
+
+		Rule(String text) {
+			if (text.startsWith("!")) {
+				negate = true;
+				text = text.substring(1);
+			} else {
+				negate = false;
+			}
+			dirOnly = text.endsWith("/");
+			if (dirOnly) {
+				text = text.substring(0, text.length() - 1);
+			}
+			anchored = text.indexOf('/') >= 0;
+			if (text.startsWith("/")) {
+				text = text.substring(1);
+			}
+			glob = text;
+			if (!hasWildcard(text, 0)) {
+				literal = text;
+				suffix = null;
+				pattern = null;
+			} else if (!anchored && text.startsWith("*") && !hasWildcard(text, 1)) {
+				literal = null;
+				suffix = text.substring(1);
+				pattern = null;
+			} else {
+				literal = null;
+				suffix = null;
+				pattern = Pattern.compile(toRegex(text));
+			}
+		}
+
+		private static boolean hasWildcard(String text, int from) {
+			for (int i = from; i < text.length(); i++) {
+				final char c = text.charAt(i);
+				if (c == '*' || c == '?' || c == '[' || c == '\\') {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static String toRegex(String glob) {
+			final StringBuilder regex = new StringBuilder();
+			for (int i = 0; i < glob.length(); i++) {
+				final char c = glob.charAt(i);
+				if (c == '*') {
+					if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+						i++;
+						if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+							i++;
+							regex.append("(?:.*/)?"); // "**/" matches zero or more directories
+						} else {
+							regex.append(".*");
+						}
+					} else {
+						regex.append("[^/]*");
+					}
+				} else if (c == '?') {
+					regex.append("[^/]");
+				} else if (c == '[') {
+					final int end = glob.indexOf(']', i + 2);
+					if (end < 0) {
+						regex.append("\\[");
+						continue;
+					}
+					String set = glob.substring(i + 1, end);
+					if (set.startsWith("!")) {
+						set = "^" + set.substring(1);
+					}
+					regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+					i = end;
+				} else if (c == '\\' && i + 1 < glob.length()) {
+					regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+				} else if ("().+^$|{}".indexOf(c) >= 0) {
+					regex.append('\\').append(c);
+				} else {
+					regex.append(c);
+				}
+			}
+			return regex.toString();
+		}
+
+		/**
+		 * @return POSIX extended regex matching what this rule matches and anything under it, for relative paths
+		 * that may end with '/' if they are directories
+		 */
+		String toExtendedRegex() {
+			final StringBuilder regex = new StringBuilder();
+			if (!anchored) {
+				regex.append("(.*/)?");
+			}
+			for (int i = 0; i < glob.length(); i++) {
+				final char c = glob.charAt(i);
+				if (c == '*') {
+					if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+						i++;
+						if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+							i++;
+							regex.append("(.*/)?");
+						} else {
+							regex.append(".*");
+						}
+					} else {
+						regex.append("[^/]*");
+					}
+				} else if (c == '?') {
+					regex.append("[^/]");
+				} else if (c == '[' && glob.indexOf(']', i + 2) >= 0) {
+					final int end = glob.indexOf(']', i + 2);
+					final String set = glob.substring(i + 1, end);
+					regex.append('[').append(set.startsWith("!") ? "^" + set.substring(1) : set).append(']');
+					i = end;
+				} else {
+					if (c == '\\' && i + 1 < glob.length()) {
+						i++;
+					}
+					final char literal = glob.charAt(i);
+					if (".[]()*+?{}|^$\\".indexOf(literal) >= 0) {
+						regex.append('\\');
+					}
+					regex.append(literal);
+				}
+			}
+			// a directory-only rule cannot tell a directory from a file by name, but everything under one is excluded
+			return regex.append(dirOnly ? "/" : "(/|$)").toString();
+		}
+
+		boolean matches(String relative, boolean isDirectory) {
+			if (dirOnly && !isDirectory) {
+				return false;
+			}
+			final int start = anchored ? 0 : relative.lastIndexOf('/') + 1;
+			final int length = relative.length() - start;
+			if (literal != null) {
+				return length == literal.length() && relative.startsWith(literal, start);
+			}
+			if (suffix != null) {
+				return relative.endsWith(suffix);
+			}
+			return pattern.matcher(relative).region(start, relative.length()).matches();
+		}
+	}
+
+	private final List<Rule> excludes = new ArrayList<>();
+	private final List<Rule> includes = new ArrayList<>();
+
+	/**
+	 * @param lines rules, blank lines and comments are skipped
+	 */
+	void addExcludes(Iterable<String> lines) {
+		add(excludes, lines);
+	}
+
+	void addIncludes(Iterable<String> lines) {
+		add(includes, lines);
+	}
+
+	private static void add(List<Rule> rules, Iterable<String> lines) {
+		for (String line : lines) {
+			line = line.strip();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			rules.add(new Rule(line));
+		}
+	}
+
+	boolean isEmpty() {
+		return excludes.isEmpty() && includes.isEmpty();
+	}
+
+	/**
+	 * Exclusions that no later rule can revert, so that a watch backend can skip them before watching anything.
+	 *
+	 * @return POSIX extended regex matching the relative paths excluded by the rules after the last "!" rule, and
+	 * anything under them, or null if there are none
+	 */
+	String toExcludeRegex() {
+		int first = excludes.size();
+		while (first > 0 && !excludes.get(first - 1).negate) {
+			first--;
+		}
+		if (first == excludes.size()) {
+			return null;
+		}
+		final StringJoiner regex = new StringJoiner("|", "(", ")");
+		for (Rule rule : excludes.subList(first, excludes.size())) {
+			regex.add(rule.toExtendedRegex());
+		}
+		return regex.toString();
+	}
+
+	/**
+	 * @return the result of the last matching rule, or def if none matches
+	 */
+	private static boolean lastMatch(List<Rule> rules, String relative, boolean isDirectory, boolean def) {
+		for (int i = rules.size() - 1; i >= 0; i--) {
+			final Rule rule = rules.get(i);
+			if (rule.matches(relative, isDirectory)) {
+				return !rule.negate;
+			}
+		}
+		return def;
+	}
+
+	/**
+	 * Only checks the path itself, assuming its parent directories are accepted.
+	 */
+	boolean accepts(String relative, boolean isDirectory) {
+		if (lastMatch(excludes, relative, isDirectory, false)) {
+			return false;
+		}
+		return isDirectory || includes.isEmpty() || lastMatch(includes, relative, false, false);
+	}
+
+	/**
+	 * Also checks every parent directory, for paths not found by walking the tree from the root.
+	 */
+	boolean acceptsWithParents(String relative, boolean isDirectory) {
+		if (!excludes.isEmpty()) {
+			for (int i = relative.indexOf('/'); i >= 0; i = relative.indexOf('/', i + 1)) {
+				if (lastMatch(excludes, relative.substring(0, i), true, false)) {
+					return false;
+				}
+			}
+		}
+		return accepts(relative, isDirectory);
+	}
+}
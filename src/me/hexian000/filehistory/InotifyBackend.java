@@ -0,0 +1,195 @@
+package me.hexian000.filehistory;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Stream;
+
+/**
+ * Linux backend using a recursive inotify watch on the whole tree, provided by {@code inotifywait} from
+ * inotify-tools. New subdirectories are watched by inotifywait itself, and events are read in large batches.
+ * Excluded directories are passed to inotifywait, which then neither watches them nor reports their events.
+ * <p>
+ * If inotifywait exits on its own, e.g. when the watch limit is reached, polling fails with its exit status and the
+ * last message it printed.
+ */
+class InotifyBackend implements WatchBackend {
+	private static final String EVENTS = "create,delete,modify,close_write,moved_from,moved_to";
+
+	private final Process process;
+	private final InputStream in;
+	private final Logger log;
+	private final Thread stderr;
+	private volatile String lastError = "";
+	private volatile boolean closed = false;
+	private final NavigableSet<Path> watched = new ConcurrentSkipListSet<>();
+	private final Charset charset = Charset.defaultCharset();
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+
+	/**
+	 * @param exclude see {@link IgnoreRules#toExcludeRegex}, or null
+	 */
+	InotifyBackend(Path root, String exclude, Logger logger) throws IOException {
+		log = logger;
+		final List<String> command = new ArrayList<>(List.of("inotifywait", "--monitor", "--recursive", "--quiet",
+				"--event", EVENTS, "--format", "%e %w%f%0", "--no-newline"));
+		if (exclude != null) {
+			command.add("--exclude");
+			command.add("^" + quote(root.toString().endsWith("/") ? root.toString() : root + "/") + exclude);
+		}
+		command.add(root.toString());
+		process = new ProcessBuilder(command).start();
+		in = new BufferedInputStream(process.getInputStream(), 1 << 20);
+		stderr = new Thread(this::readErrors, "inotifywait-stderr");
+		stderr.setDaemon(true);
+		stderr.start();
+	}
+
+	private static String quote(String literal) {
+		final StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < literal.length(); i++) {
+			final char c = literal.charAt(i);
+			if (".[]()*+?{}|^$\\".indexOf(c) >= 0) {
+				regex.append('\\');
+			}
+			regex.append(c);
+		}
+		return regex.toString();
+	}
+
+	private void readErrors() {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream(), charset))) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if (!line.isBlank()) {
+					log.warning("inotifywait: {}", line);
+					lastError = line;
+				}
+			}
+		} catch (IOException ignored) {
+		}
+	}
+
+	static boolean isAvailable() {
+		if (!System.getProperty("os.name", "").toLowerCase().startsWith("linux")) {
+			return false;
+		}
+		try {
+			return new ProcessBuilder("inotifywait", "--help").redirectErrorStream(true).start().waitFor() <= 1;
+		} catch (IOException | InterruptedException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void register(Path dir) {
+		watched.add(dir); // watched recursively from the root
+	}
+
+	/**
+	 * Forgets a directory that was deleted or moved away, together with every directory under it.
+	 */
+	private void unwatch(Path dir) {
+		final String prefix = dir.toString();
+		for (Iterator<Path> it = watched.tailSet(dir).iterator(); it.hasNext(); ) {
+			final Path path = it.next();
+			if (!path.toString().startsWith(prefix)) {
+				break; // sorted, so everything under dir comes right after it
+			}
+			if (path.startsWith(dir)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return number of kernel watches held by inotifywait, or the number of registered directories if unknown
+	 */
+	@Override
+	public int getWatchCount() {
+		final Path proc = Paths.get("/proc", Long.toString(process.pid()));
+		try (DirectoryStream<Path> fds = Files.newDirectoryStream(proc.resolve("fd"))) {
+			int count = 0;
+			for (Path fd : fds) {
+				if (!"anon_inode:inotify".equals(Files.readSymbolicLink(fd).toString())) {
+					continue;
+				}
+				// one line per watch
+				try (Stream<String> lines = Files.lines(proc.resolve("fdinfo").resolve(fd.getFileName()))) {
+					count += (int) lines.filter(line -> line.startsWith("inotify wd:")).count();
+				}
+			}
+			return count;
+		} catch (IOException | UncheckedIOException e) {
+			return watched.size();
+		}
+	}
+
+	@Override
+	public boolean isRecursive() {
+		return true;
+	}
+
+	/**
+	 * @return a NUL terminated record, or null at end of stream
+	 */
+	private String readRecord() throws IOException {
+		record.reset();
+		while (true) {
+			final int b = in.read();
+			if (b < 0) {
+				return null;
+			} else if (b == 0) {
+				return record.toString(charset);
+			}
+			record.write(b);
+		}
+	}
+
+	@Override
+	public boolean poll(Listener listener) throws IOException, InterruptedException {
+		do {
+			final String line = readRecord();
+			if (line == null) {
+				if (closed) {
+					return false;
+				}
+				final int status = process.waitFor();
+				stderr.join(1000); // for the last message
+				throw new IOException("inotifywait exited with status " + status + ": " + lastError);
+			}
+			final int space = line.indexOf(' ');
+			if (space < 0) {
+				continue;
+			}
+			final String events = line.substring(0, space);
+			final Path path = Paths.get(line.substring(space + 1));
+			if (events.contains("Q_OVERFLOW")) {
+				listener.onOverflow(null);
+			} else if (events.contains("CREATE") || events.contains("MOVED_TO")) {
+				listener.onEvent(WatcherEvent.EVENT_CREATE, path);
+			} else if (events.contains("DELETE") || events.contains("MOVED_FROM")) {
+				if (events.contains("ISDIR")) {
+					unwatch(path);
+				}
+				listener.onEvent(WatcherEvent.EVENT_DELETE, path);
+			} else if (events.contains("MODIFY") || events.contains("CLOSE_WRITE")) {
+				listener.onEvent(WatcherEvent.EVENT_MODIFY, path);
+			}
+		} while (in.available() > 0);
+		return true;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		process.destroy();
+	}
+}
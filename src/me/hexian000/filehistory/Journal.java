@@ -0,0 +1,148 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-ahead log of backups in flight. A version is begun and the record synced before it is moved into place, and
+ * committed once it is durable. Versions begun but not committed when the repository was last closed are checked on
+ * open.
+ */
+class Journal {
+	private static final byte OP_BEGIN = 1;
+	private static final byte OP_COMMIT = 2;
+	private static final long TRUNCATE_SIZE = 1024 * 1024;
+
+	static final class Record {
+		final String key;
+		final long time;
+		final long size;
+
+		Record(String key, long time, long size) {
+			this.key = key;
+			this.time = time;
+			this.size = size;
+		}
+	}
+
+	final Path file;
+	private final List<Record> uncommitted = new ArrayList<>();
+	private final FileChannel channel;
+	private final Object forceLock = new Object();
+	private int inFlight = 0;
+	private long written = 0, forced = 0; // records, guarded by this
+
+	Journal(Path file) throws IOException {
+		this.file = file;
+		if (Files.exists(file)) {
+			load();
+		}
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+	}
+
+	private void load() throws IOException {
+		final Map<String, Record> begun = new LinkedHashMap<>();
+		RecordReader.replay(file, buf -> {
+			final byte op = buf.get();
+			final byte[] keyBytes = new byte[buf.getShort() & 0xffff];
+			buf.get(keyBytes);
+			final String key = new String(keyBytes, StandardCharsets.UTF_8);
+			final long time = buf.getLong();
+			if (op == OP_BEGIN) {
+				begun.put(key + '\n' + time, new Record(key, time, buf.getLong()));
+			} else if (op == OP_COMMIT) {
+				begun.remove(key + '\n' + time);
+			} else {
+				return false;
+			}
+			return true;
+		}); // a torn record at the tail is ignored
+		uncommitted.addAll(begun.values());
+	}
+
+	/**
+	 * @return versions begun but not committed before this journal was opened, in the order they were begun
+	 */
+	List<Record> uncommitted() {
+		return uncommitted;
+	}
+
+	/**
+	 * Forgets the uncommitted versions after they are checked.
+	 */
+	synchronized void reset() throws IOException {
+		uncommitted.clear();
+		if (inFlight == 0) {
+			channel.truncate(0);
+			channel.force(true);
+		}
+	}
+
+	private void write(byte op, String key, long time, long size) throws IOException {
+		final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer buf = ByteBuffer.allocate(1 + 2 + keyBytes.length + 8 + 8);
+		buf.put(op).putShort((short) keyBytes.length).put(keyBytes).putLong(time);
+		if (op == OP_BEGIN) {
+			buf.putLong(size);
+		}
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		written++;
+	}
+
+	synchronized void begin(String key, long time, long size) throws IOException {
+		write(OP_BEGIN, key, time, size);
+		inFlight++;
+	}
+
+	/**
+	 * Syncs the records written so far. Concurrent callers share one sync, a caller whose records were synced by
+	 * another one returns right away.
+	 */
+	void force() throws IOException {
+		final long needed;
+		synchronized (this) {
+			needed = written;
+		}
+		synchronized (forceLock) {
+			final long upTo;
+			synchronized (this) {
+				if (forced >= needed) {
+					return;
+				}
+				upTo = written;
+			}
+			channel.force(false);
+			synchronized (this) {
+				forced = upTo;
+			}
+		}
+	}
+
+	/**
+	 * Also called when a begun version is abandoned.
+	 */
+	synchronized void commit(String key, long time) throws IOException {
+		write(OP_COMMIT, key, time, 0);
+		inFlight--;
+		if (inFlight == 0 && uncommitted.isEmpty() && channel.position() > TRUNCATE_SIZE) {
+			channel.truncate(0);
+		}
+	}
+
+	synchronized void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,32 @@
+package me.hexian000.filehistory;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * A formatted log message.
+ */
+public final class LogRecord {
+	private static final DateTimeFormatter TIME_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS", Locale.ROOT).withZone(ZoneId.systemDefault());
+
+	public final long time;
+	public final Logger.Level level;
+	public final String message;
+
+	LogRecord(long time, Logger.Level level, String message) {
+		this.time = time;
+		this.level = level;
+		this.message = message;
+	}
+
+	/**
+	 * @return "time [LEVEL] message" in local time
+	 */
+	@Override
+	public String toString() {
+		return TIME_FORMAT.format(Instant.ofEpochMilli(time)) + " " + level.tag + " " + message;
+	}
+}
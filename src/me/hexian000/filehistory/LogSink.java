@@ -0,0 +1,19 @@
+package me.hexian000.filehistory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of an asynchronous {@link Logger}, called on the logger thread only.
+ */
+public interface LogSink extends Closeable {
+	/**
+	 * @param batch records in logging order, only valid during the call
+	 */
+	void write(List<LogRecord> batch) throws IOException;
+
+	@Override
+	default void close() throws IOException {
+	}
+}
@@ -1,28 +1,316 @@
 package me.hexian000.filehistory;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
+/**
+ * Leveled logger. Messages are templates with "{}" placeholders, formatted only if the level is enabled.
+ * <p>
+ * An asynchronous logger puts records into a lock-free ring buffer, a background thread formats them and hands
+ * them to the sinks in batches. When the buffer is full, records are dropped instead of blocking the caller.
+ * Arguments are formatted later on that thread, so they must not be modified after logging.
+ */
 @SuppressWarnings("WeakerAccess")
-public class Logger {
-	private final Consumer<String> logger;
+public class Logger implements Closeable {
+	/**
+	 * Minimum level logged: DEBUG, INFO, WARN or ERROR.
+	 */
+	public static final String OPTION_LEVEL = "log.level";
+	/**
+	 * Log file, rolled over by size. No log file if unset.
+	 */
+	public static final String OPTION_FILE = "log.file";
+	/**
+	 * Maximum size of a log file, in bytes or with a K, M, G or T suffix.
+	 */
+	public static final String OPTION_FILE_SIZE = "log.file.size";
+	/**
+	 * Number of rolled over log files kept.
+	 */
+	public static final String OPTION_FILE_COUNT = "log.file.count";
+	private static final int BATCH = 1024;
+	private static final Object NO_ARGS = new Object(); // message is not a template
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
 
-	public Logger(Consumer<String> logger) {this.logger = logger;}
+	public enum Level {
+		DEBUG("[DEBUG]"), INFO("[INFO ]"), WARN("[WARN ]"), ERROR("[ERROR]");
 
-	public void info(String message) {
-		if (logger != null) {
-			logger.accept("[INFO ] " + message);
+		final String tag;
+
+		Level(String tag) {
+			this.tag = tag;
 		}
 	}
 
-	public void warning(String message) {
+	private static final class Slot {
+		volatile long sequence;
+		long time;
+		Level level;
+		String format;
+		Object arg0, arg1, arg2;
+	}
+
+	private final Level minimum;
+	private final Consumer<String> logger; // synchronous mode
+	private final LogSink[] sinks;
+	private final Slot[] slots;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0; // consumer only
+	private final LongAdder dropped = new LongAdder();
+	private final Thread consumer;
+	private volatile boolean closing = false;
+
+	/**
+	 * Synchronous logger, writes "[LEVEL] message" lines to logger on the calling thread.
+	 *
+	 * @param logger null to discard everything
+	 */
+	public Logger(Consumer<String> logger) {
+		this.logger = logger;
+		minimum = logger != null ? Level.INFO : null;
+		sinks = null;
+		slots = null;
+		mask = 0;
+		consumer = null;
+	}
+
+	/**
+	 * Asynchronous logger.
+	 *
+	 * @param capacity ring buffer size, rounded up to a power of 2
+	 */
+	public Logger(Level minimum, int capacity, LogSink... sinks) {
+		this.minimum = minimum;
+		logger = null;
+		this.sinks = sinks.clone();
+		final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		slots = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+			slots[i].sequence = i;
+		}
+		mask = size - 1;
+		consumer = new Thread(this::drain, "Logger");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	/**
+	 * Asynchronous logger configured by OPTION_* options, writing to the given sinks and the log file if set.
+	 */
+	public static Logger create(Properties options, LogSink... sinks) throws IOException {
+		final List<LogSink> list = new ArrayList<>(List.of(sinks));
+		final String file = options.getProperty(OPTION_FILE);
+		if (file != null) {
+			list.add(new RollingFileLogSink(Paths.get(file),
+					Options.parseSize(options.getProperty(OPTION_FILE_SIZE, "10M")),
+					Integer.parseInt(options.getProperty(OPTION_FILE_COUNT, "5"))));
+		}
+		return new Logger(Level.valueOf(options.getProperty(OPTION_LEVEL, "INFO").toUpperCase()), 8192,
+				list.toArray(new LogSink[0]));
+	}
+
+	public boolean isEnabled(Level level) {
+		return minimum != null && level.compareTo(minimum) >= 0;
+	}
+
+	/**
+	 * @return number of records dropped because the buffer was full
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	static String format(String format, Object arg0, Object arg1, Object arg2) {
+		int start = arg0 != NO_ARGS ? format.indexOf("{}") : -1;
+		if (start < 0) {
+			return format;
+		}
+		final StringBuilder sb = new StringBuilder(format.length() + 64);
+		int from = 0, i = 0;
+		for (; start >= 0 && i < 3; start = format.indexOf("{}", from), i++) {
+			sb.append(format, from, start).append(i == 0 ? arg0 : i == 1 ? arg1 : arg2);
+			from = start + 2;
+		}
+		return sb.append(format, from, format.length()).toString();
+	}
+
+	private void log(Level level, String format, Object arg0, Object arg1, Object arg2) {
+		if (!isEnabled(level)) {
+			return;
+		}
 		if (logger != null) {
-			logger.accept("[WARN ] " + message);
+			logger.accept(level.tag + " " + format(format, arg0, arg1, arg2));
+			return;
+		}
+		if (closing) {
+			dropped.increment();
+			return;
+		}
+		Slot slot;
+		long pos = tail.get();
+		while (true) {
+			slot = slots[(int) (pos & mask)];
+			final long diff = slot.sequence - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if (diff < 0) { // full
+				dropped.increment();
+				return;
+			} else {
+				pos = tail.get();
+			}
+		}
+		slot.time = System.currentTimeMillis();
+		slot.level = level;
+		slot.format = format;
+		slot.arg0 = arg0;
+		slot.arg1 = arg1;
+		slot.arg2 = arg2;
+		slot.sequence = pos + 1; // publish
+		if ((pos & (slots.length / 2 - 1)) == 0) { // do not wait for the idle timeout while filling up
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * @return number of records taken
+	 */
+	private int poll(List<LogRecord> batch) {
+		int n = 0;
+		while (n < BATCH) {
+			final Slot slot = slots[(int) (head & mask)];
+			if (slot.sequence != head + 1) {
+				break;
+			}
+			batch.add(new LogRecord(slot.time, slot.level, format(slot.format, slot.arg0, slot.arg1, slot.arg2)));
+			slot.format = null;
+			slot.arg0 = slot.arg1 = slot.arg2 = null;
+			slot.sequence = head + slots.length; // free
+			head++;
+			n++;
+		}
+		return n;
+	}
+
+	private void drain() {
+		final List<LogRecord> batch = new ArrayList<>(BATCH);
+		long reportedDrops = 0;
+		while (true) {
+			final boolean last = closing; // read before polling, so nothing published before close is lost
+			if (poll(batch) == 0) {
+				if (last) {
+					break;
+				}
+				LockSupport.parkNanos(IDLE_NANOS);
+				continue;
+			}
+			final long drops = dropped.sum();
+			if (drops != reportedDrops) {
+				batch.add(new LogRecord(System.currentTimeMillis(), Level.WARN,
+						(drops - reportedDrops) + " log records dropped"));
+				reportedDrops = drops;
+			}
+			for (LogSink sink : sinks) {
+				try {
+					sink.write(batch);
+				} catch (IOException | RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+			batch.clear();
 		}
 	}
 
+	public void debug(String message) {
+		log(Level.DEBUG, message, NO_ARGS, null, null);
+	}
+
+	public void debug(String format, Object arg0) {
+		log(Level.DEBUG, format, arg0, null, null);
+	}
+
+	public void debug(String format, Object arg0, Object arg1) {
+		log(Level.DEBUG, format, arg0, arg1, null);
+	}
+
+	public void info(String message) {
+		log(Level.INFO, message, NO_ARGS, null, null);
+	}
+
+	public void info(String format, Object arg0) {
+		log(Level.INFO, format, arg0, null, null);
+	}
+
+	public void info(String format, Object arg0, Object arg1) {
+		log(Level.INFO, format, arg0, arg1, null);
+	}
+
+	public void info(String format, Object arg0, Object arg1, Object arg2) {
+		log(Level.INFO, format, arg0, arg1, arg2);
+	}
+
+	public void warning(String message) {
+		log(Level.WARN, message, NO_ARGS, null, null);
+	}
+
+	public void warning(String format, Object arg0) {
+		log(Level.WARN, format, arg0, null, null);
+	}
+
+	public void warning(String format, Object arg0, Object arg1) {
+		log(Level.WARN, format, arg0, arg1, null);
+	}
+
+	public void warning(String format, Object arg0, Object arg1, Object arg2) {
+		log(Level.WARN, format, arg0, arg1, arg2);
+	}
+
 	public void error(String message) {
-		if (logger != null) {
-			logger.accept("[ERROR] " + message);
+		log(Level.ERROR, message, NO_ARGS, null, null);
+	}
+
+	public void error(String format, Object arg0) {
+		log(Level.ERROR, format, arg0, null, null);
+	}
+
+	public void error(String format, Object arg0, Object arg1) {
+		log(Level.ERROR, format, arg0, arg1, null);
+	}
+
+	/**
+	 * Writes the remaining records and closes the sinks, later records are dropped.
+	 */
+	@Override
+	public void close() {
+		if (consumer == null || closing) {
+			return;
+		}
+		closing = true;
+		LockSupport.unpark(consumer);
+		try {
+			consumer.join();
+		} catch (InterruptedException ignored) {
+		}
+		for (LogSink sink : sinks) {
+			try {
+				sink.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 }
@@ -0,0 +1,160 @@
+package me.hexian000.filehistory;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of counters, gauges and histograms, read by {@link MetricsExporter}.
+ * <p>
+ * Names and labels follow the Prometheus conventions: a family such as "filehistory_events_total" holds one metric
+ * per label set such as {@code kind="create"}. Updating a metric does not lock.
+ */
+public class Metrics {
+	public static final class Counter {
+		private final LongAdder value = new LongAdder();
+
+		public void inc() {
+			value.increment();
+		}
+
+		public void add(long n) {
+			value.add(n);
+		}
+
+		public long get() {
+			return value.sum();
+		}
+	}
+
+	public static final class Histogram {
+		private final double[] bounds;
+		private final LongAdder[] buckets; // not cumulative, the last one is +Inf
+		private final DoubleAdder sum = new DoubleAdder();
+
+		Histogram(double[] bounds) {
+			this.bounds = bounds;
+			buckets = new LongAdder[bounds.length + 1];
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		public void observe(double value) {
+			int i = 0;
+			while (i < bounds.length && value > bounds[i]) {
+				i++;
+			}
+			buckets[i].increment();
+			sum.add(value);
+		}
+
+		/**
+		 * @param nanos duration, observed in seconds
+		 */
+		public void observeNanos(long nanos) {
+			observe(nanos / 1e9);
+		}
+
+		double[] bounds() {
+			return bounds;
+		}
+
+		/**
+		 * @return cumulative counts per bound, the last one is the total count
+		 */
+		long[] cumulativeCounts() {
+			final long[] counts = new long[buckets.length];
+			long total = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				total += buckets[i].sum();
+				counts[i] = total;
+			}
+			return counts;
+		}
+
+		double sum() {
+			return sum.sum();
+		}
+	}
+
+	static final String COUNTER = "counter";
+	static final String GAUGE = "gauge";
+	static final String HISTOGRAM = "histogram";
+	/**
+	 * Latency buckets in seconds.
+	 */
+	public static final double[] LATENCY_BOUNDS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 60};
+
+	static final class Family {
+		final String name;
+		final String help;
+		final String type;
+		final Map<String, Object> metrics = new ConcurrentSkipListMap<>(); // by labels, "" for none
+
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private final Map<String, Family> families = new TreeMap<>();
+
+	private synchronized Object register(String name, String help, String type, String labels, Object metric) {
+		final Family family = families.computeIfAbsent(name, k -> new Family(name, help, type));
+		if (!family.type.equals(type)) {
+			throw new IllegalArgumentException(name + " is a " + family.type);
+		}
+		final Object existing = family.metrics.putIfAbsent(labels, metric);
+		return existing != null ? existing : metric;
+	}
+
+	/**
+	 * @param labels e.g. {@code kind="create"}, or "" for none
+	 * @return the counter registered under name and labels, created if absent
+	 */
+	public Counter counter(String name, String help, String labels) {
+		return (Counter) register(name, help, COUNTER, labels, new Counter());
+	}
+
+	/**
+	 * Registers or replaces a counter maintained elsewhere, read on every export.
+	 */
+	public void counter(String name, String help, String labels, LongSupplier value) {
+		function(name, help, COUNTER, labels, value);
+	}
+
+	/**
+	 * Registers or replaces a gauge read on every export.
+	 */
+	public void gauge(String name, String help, String labels, LongSupplier value) {
+		function(name, help, GAUGE, labels, value);
+	}
+
+	private synchronized void function(String name, String help, String type, String labels, LongSupplier value) {
+		register(name, help, type, labels, value);
+		families.get(name).metrics.put(labels, value);
+	}
+
+	public Histogram histogram(String name, String help, String labels, double[] bounds) {
+		return (Histogram) register(name, help, HISTOGRAM, labels, new Histogram(bounds));
+	}
+
+	/**
+	 * @return families by name, the returned map is a copy but the metrics are live
+	 */
+	synchronized Map<String, Family> families() {
+		return new TreeMap<>(families);
+	}
+
+	static long value(Object metric) {
+		if (metric instanceof Counter) {
+			return ((Counter) metric).get();
+		}
+		return ((LongSupplier) metric).getAsLong();
+	}
+}
@@ -0,0 +1,210 @@
+package me.hexian000.filehistory;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Exposes a {@link Metrics} registry as a JMX MBean and as a Prometheus text endpoint on a local HTTP port.
+ * <p>
+ * In JMX every metric is a read-only attribute named after its family and label values, e.g.
+ * "filehistory_events_total.create", histograms show their count and sum.
+ */
+class MetricsExporter {
+	static final String OBJECT_NAME = "me.hexian000.filehistory:type=Metrics";
+	private static final Pattern LABEL_VALUE = Pattern.compile("=\"([^\"]*)\"");
+
+	private final Metrics metrics;
+	private ObjectName objectName;
+	private HttpServer server;
+
+	MetricsExporter(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Replaces an MBean registered under the same name, e.g. by a previous daemon in this JVM.
+	 */
+	void registerMBean() throws JMException {
+		final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = new ObjectName(OBJECT_NAME);
+		if (mbs.isRegistered(name)) {
+			mbs.unregisterMBean(name);
+		}
+		mbs.registerMBean(new MBean(), name);
+		objectName = name;
+	}
+
+	/**
+	 * Serves GET /metrics on a background thread.
+	 */
+	void startHttp(String host, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		server.createContext("/metrics", exchange -> {
+			try {
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+				final byte[] body = toPrometheus(metrics).getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			} finally {
+				exchange.close();
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * @return bound address, e.g. when started on port 0
+	 */
+	InetSocketAddress getHttpAddress() {
+		return server != null ? server.getAddress() : null;
+	}
+
+	static String toPrometheus(Metrics metrics) {
+		final StringBuilder sb = new StringBuilder();
+		for (Metrics.Family family : metrics.families().values()) {
+			if (family.metrics.isEmpty()) {
+				continue;
+			}
+			sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			sb.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			for (Map.Entry<String, Object> item : family.metrics.entrySet()) {
+				final String labels = item.getKey();
+				if (!(item.getValue() instanceof Metrics.Histogram)) {
+					sample(sb, family.name, labels, Long.toString(Metrics.value(item.getValue())));
+					continue;
+				}
+				final Metrics.Histogram histogram = (Metrics.Histogram) item.getValue();
+				final double[] bounds = histogram.bounds();
+				final long[] counts = histogram.cumulativeCounts();
+				final String prefix = labels.isEmpty() ? "" : labels + ",";
+				for (int i = 0; i < counts.length; i++) {
+					final String le = i < bounds.length ? Double.toString(bounds[i]) : "+Inf";
+					sample(sb, family.name + "_bucket", prefix + "le=\"" + le + "\"", Long.toString(counts[i]));
+				}
+				sample(sb, family.name + "_sum", labels, Double.toString(histogram.sum()));
+				sample(sb, family.name + "_count", labels, Long.toString(counts[counts.length - 1]));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void sample(StringBuilder sb, String name, String labels, String value) {
+		sb.append(name);
+		if (!labels.isEmpty()) {
+			sb.append('{').append(labels).append('}');
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+
+	private static String attributeName(String name, String labels) {
+		final StringBuilder sb = new StringBuilder(name);
+		final Matcher m = LABEL_VALUE.matcher(labels);
+		while (m.find()) {
+			sb.append('.').append(m.group(1));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return attribute values by name, in export order
+	 */
+	private Map<String, Object> attributes() {
+		final Map<String, Object> result = new LinkedHashMap<>();
+		for (Metrics.Family family : metrics.families().values()) {
+			for (Map.Entry<String, Object> item : family.metrics.entrySet()) {
+				final String name = attributeName(family.name, item.getKey());
+				if (item.getValue() instanceof Metrics.Histogram) {
+					final Metrics.Histogram histogram = (Metrics.Histogram) item.getValue();
+					final long[] counts = histogram.cumulativeCounts();
+					result.put(name + "_count", counts[counts.length - 1]);
+					result.put(name + "_sum", histogram.sum());
+				} else {
+					result.put(name, Metrics.value(item.getValue()));
+				}
+			}
+		}
+		return result;
+	}
+
+	private final class MBean implements DynamicMBean {
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			final Object value = attributes().get(attribute);
+			if (value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("read only: " + attribute.getName());
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] names) {
+			final Map<String, Object> values = attributes();
+			final AttributeList result = new AttributeList();
+			for (String name : names) {
+				final Object value = values.get(name);
+				if (value != null) {
+					result.add(new Attribute(name, value));
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			final List<MBeanAttributeInfo> infos = new ArrayList<>();
+			for (Map.Entry<String, Object> item : attributes().entrySet()) {
+				infos.add(new MBeanAttributeInfo(item.getKey(), item.getValue().getClass().getName(),
+						item.getKey(), true, false, false));
+			}
+			return new MBeanInfo(Metrics.class.getName(), "FileHistory metrics",
+					infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+		}
+	}
+
+	void close() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException ignored) {
+			}
+			objectName = null;
+		}
+	}
+}
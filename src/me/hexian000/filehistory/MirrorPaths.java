@@ -0,0 +1,157 @@
+package me.hexian000.filehistory;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Maps source files to their mirrored location in a repository, with characters that are not valid in file names
+ * replaced.
+ * <p>
+ * Sanitized path segments are interned and resolved mirrors are cached, so repeated events of the same file do not
+ * allocate.
+ */
+class MirrorPaths {
+	private static final int MAX_SEGMENTS = 65536;
+	private static final int MAX_MIRRORS = 65536;
+
+	static final class Mirror {
+		/**
+		 * Directory of the versions in the repository.
+		 */
+		final Path dir;
+		/**
+		 * Index key: sanitized path relative to the repository root, separated by '/'.
+		 */
+		final String key;
+		/**
+		 * File name without and with extension, version names are formed as "base (time)ext".
+		 */
+		final String base;
+		final String ext;
+
+		Mirror(Path dir, String key, String base, String ext) {
+			this.dir = dir;
+			this.key = key;
+			this.base = base;
+			this.ext = ext;
+		}
+	}
+
+	private final Path root;
+	private final Map<String, String> segments = new ConcurrentHashMap<>();
+	private final Map<Path, Mirror> mirrors = new ConcurrentHashMap<>();
+
+	MirrorPaths(Path root) {
+		this.root = root;
+	}
+
+	private static boolean isInvalid(char c) {
+		switch (c) {
+		case ':':
+		case '\\':
+		case '/':
+		case '*':
+		case '?':
+		case '|':
+		case '<':
+		case '>':
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return name with invalid characters replaced by '_', the same instance if nothing was replaced
+	 */
+	static String sanitize(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (isInvalid(name.charAt(i))) {
+				final char[] chars = name.toCharArray();
+				for (int j = i; j < chars.length; j++) {
+					if (isInvalid(chars[j])) {
+						chars[j] = '_';
+					}
+				}
+				return new String(chars);
+			}
+		}
+		return name;
+	}
+
+	private String intern(String segment) {
+		final String cached = segments.get(segment);
+		if (cached != null) {
+			return cached;
+		}
+		if (segments.size() >= MAX_SEGMENTS) {
+			segments.clear();
+		}
+		final String sanitized = sanitize(segment);
+		segments.put(sanitized, sanitized);
+		if (!sanitized.equals(segment)) {
+			segments.put(segment, sanitized);
+		}
+		return sanitized;
+	}
+
+	/**
+	 * @param file absolute path of a source file
+	 */
+	Mirror get(Path file) {
+		final Mirror cached = mirrors.get(file);
+		if (cached != null) {
+			return cached;
+		}
+		final Mirror mirror = resolve(file);
+		if (mirrors.size() >= MAX_MIRRORS) {
+			mirrors.clear();
+		}
+		mirrors.put(file, mirror);
+		return mirror;
+	}
+
+	private Mirror resolve(Path file) {
+		final List<String> parts = new ArrayList<>();
+		final Path fileRoot = file.getRoot();
+		if (fileRoot != null) { // drive letter or UNC server and share
+			for (String part : fileRoot.toString().split(Pattern.quote(File.separator))) {
+				if (!part.isEmpty()) {
+					parts.add(intern(part));
+				}
+			}
+		}
+		for (Path name : file) {
+			parts.add(intern(name.toString()));
+		}
+		if (parts.isEmpty()) {
+			throw new IllegalArgumentException("not a file: " + file);
+		}
+		Path dir = root;
+		for (int i = 0; i < parts.size() - 1; i++) {
+			dir = dir.resolve(parts.get(i));
+		}
+		return mirror(dir, String.join("/", parts), parts.get(parts.size() - 1));
+	}
+
+	private static Mirror mirror(Path dir, String key, String name) {
+		final int dot = name.lastIndexOf('.');
+		return new Mirror(dir, key, dot < 0 ? name : name.substring(0, dot), dot < 0 ? "" : name.substring(dot));
+	}
+
+	/**
+	 * @param key index key of a file, as in {@link Mirror#key}
+	 */
+	Mirror ofKey(String key) {
+		final String[] parts = key.split("/");
+		Path dir = root;
+		for (int i = 0; i < parts.length - 1; i++) {
+			dir = dir.resolve(parts[i]);
+		}
+		return mirror(dir, key, parts[parts.length - 1]);
+	}
+}
@@ -0,0 +1,44 @@
+package me.hexian000.filehistory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of option values with units.
+ */
+final class Options {
+	private Options() {
+	}
+
+	/**
+	 * @param text number followed by s, m, h, d or w
+	 * @return milliseconds
+	 */
+	static long parseDuration(String text) {
+		final long value = Long.parseLong(text.substring(0, text.length() - 1));
+		switch (text.charAt(text.length() - 1)) {
+		case 's':
+			return TimeUnit.SECONDS.toMillis(value);
+		case 'm':
+			return TimeUnit.MINUTES.toMillis(value);
+		case 'h':
+			return TimeUnit.HOURS.toMillis(value);
+		case 'd':
+			return TimeUnit.DAYS.toMillis(value);
+		case 'w':
+			return TimeUnit.DAYS.toMillis(value * 7);
+		}
+		throw new IllegalArgumentException("unknown duration unit: " + text);
+	}
+
+	/**
+	 * @param text number of bytes, optionally followed by K, M, G or T
+	 */
+	static long parseSize(String text) {
+		final char unit = Character.toUpperCase(text.charAt(text.length() - 1));
+		final int shift = "KMGT".indexOf(unit);
+		if (shift < 0) {
+			return Long.parseLong(text);
+		}
+		return Long.parseLong(text.substring(0, text.length() - 1)) << (10 * (shift + 1));
+	}
+}
@@ -0,0 +1,144 @@
+package me.hexian000.filehistory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Stores every version as a full copy of the file.
+ * <p>
+ * Compressed copies start with a header naming the codec and the original size, followed by the codec stream. The
+ * codec is taken from the header when reading, so changing the compression options does not affect stored versions.
+ * Uncompressed copies have no header, unless the file itself starts like one.
+ */
+class PlainStorage implements Storage {
+	private static final int MAGIC = 0x46484350; // "FHCP"
+
+	private final Compression compression;
+	private final Copier copier;
+
+	PlainStorage(Compression compression, Copier copier) {
+		this.compression = compression;
+		this.copier = copier;
+	}
+
+	@Override
+	public boolean store(SourceFile source, Path target, Path previous) throws IOException {
+		final boolean compress = compression.accepts(target);
+		if (!compress && !startsWithMagic(source.path)) {
+			if (source.isDigesting()) { // through user space to hash it on the way
+				try (InputStream in = source.open()) {
+					Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+				}
+				Files.setLastModifiedTime(target, source.lastModified());
+			} else {
+				copier.copy(source.path, target);
+			}
+			return false;
+		}
+		final ByteArrayOutputStream header = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(header)) {
+			out.writeInt(MAGIC);
+			out.writeUTF(compress ? compression.getName() : Compression.NONE);
+			out.writeLong(0); // size, known once the source is read
+		}
+		long size;
+		try (FileChannel ch = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ByteBuffer buf = ByteBuffer.wrap(header.toByteArray());
+			while (buf.hasRemaining()) {
+				ch.write(buf);
+			}
+			final OutputStream unclosable = new FilterOutputStream(Channels.newOutputStream(ch)) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			};
+			try (InputStream in = source.open();
+			     OutputStream out = compress ? compression.compress(unclosable) : unclosable) {
+				size = in.transferTo(out);
+			}
+			final ByteBuffer sizeBuf = ByteBuffer.allocate(Long.BYTES).putLong(0, size);
+			final long offset = header.size() - Long.BYTES;
+			while (sizeBuf.hasRemaining()) {
+				ch.write(sizeBuf, offset + sizeBuf.position());
+			}
+		}
+		Files.setLastModifiedTime(target, source.lastModified());
+		return false;
+	}
+
+	private static boolean startsWithMagic(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+			return in.readInt() == MAGIC;
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Skips the header of a version, if it has one.
+	 *
+	 * @return codec name, or null if the version is an uncompressed copy without header
+	 */
+	private static String readHeader(DataInputStream in) throws IOException {
+		in.mark(Integer.BYTES);
+		try {
+			if (in.readInt() != MAGIC) {
+				in.reset();
+				return null;
+			}
+		} catch (EOFException e) {
+			in.reset();
+			return null;
+		}
+		return in.readUTF();
+	}
+
+	@Override
+	public InputStream open(Path target) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(target)));
+		try {
+			final String codec = readHeader(in);
+			if (codec == null) {
+				return in;
+			}
+			in.readLong();
+			return compression.decompress(codec, in);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public long size(Path target) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(target)))) {
+			return readHeader(in) == null ? Files.size(target) : in.readLong();
+		}
+	}
+
+	@Override
+	public String baseOf(Path target) {
+		return null;
+	}
+
+	@Override
+	public long delete(Path target, Path previous, List<Path> dependents) throws IOException {
+		final long size = Files.size(target);
+		Files.delete(target);
+		return size;
+	}
+}
@@ -0,0 +1,62 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replays an append-only log of binary records, read in chunks into a heap buffer. The file is not memory-mapped,
+ * so it can be truncated or replaced right after, which fails on Windows while a mapping is alive.
+ */
+final class RecordReader {
+	private static final int BUFFER_SIZE = 1024 * 1024; // larger than any record
+
+	interface Handler {
+		/**
+		 * Reads one record from buf, a record cut off at the end of buf throws BufferUnderflowException and is
+		 * read again once more of the file is buffered.
+		 *
+		 * @return false to stop at an unknown record
+		 */
+		boolean read(ByteBuffer buf);
+	}
+
+	private RecordReader() {
+	}
+
+	/**
+	 * @return length of the valid records at the start of the file, anything after it is torn or unknown
+	 */
+	static long replay(Path file, Handler handler) throws IOException {
+		final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+		long offset = 0; // of buf[0] in the file
+		long valid = 0;
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			boolean eof = false;
+			while (!eof) {
+				while (buf.hasRemaining() && !eof) {
+					eof = ch.read(buf) < 0;
+				}
+				buf.flip();
+				while (buf.hasRemaining()) {
+					final int start = buf.position();
+					try {
+						if (!handler.read(buf)) {
+							return valid;
+						}
+					} catch (BufferUnderflowException e) {
+						buf.position(start);
+						break;
+					}
+					valid = offset + buf.position();
+				}
+				offset += buf.position();
+				buf.compact();
+			}
+		}
+		return valid;
+	}
+}
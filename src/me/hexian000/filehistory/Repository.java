@@ -1,44 +1,200 @@
 package me.hexian000.filehistory;
 
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class Repository implements Consumer<WatcherEvent> {
-	private static final DateFormat ISO8601 =
-			new SimpleDateFormat("yyyy-MM-dd'T'HH_mm_ss'Z'", Locale.getDefault());
-	private static final Pattern FILENAME = Pattern.compile(
-			"^(.*?)(\\.[^.]*)?$");
+public class Repository {
+	/**
+	 * Storage mode of a new repository, persisted in the repository config.
+	 */
+	public static final String OPTION_STORAGE = "storage";
+	/**
+	 * Number of backup workers.
+	 */
+	public static final String OPTION_WORKERS = "workers";
+	/**
+	 * Maximum number of queued backups before events are pushed back to the filter.
+	 */
+	public static final String OPTION_QUEUE = "queue";
+	/**
+	 * Maximum number of deltas between two full versions in delta storage, persisted in the repository config.
+	 */
+	public static final String OPTION_KEYFRAME = "keyframe";
+	/**
+	 * Compression codec name or "none", persisted in the repository config.
+	 */
+	public static final String OPTION_COMPRESSION = "compression";
+	/**
+	 * Comma separated extensions stored without compression, persisted in the repository config.
+	 */
+	public static final String OPTION_COMPRESSION_SKIP = "compression.skip";
+	/**
+	 * Retention tiers, e.g. "24h=all,7d=1h,90d=1d,*=30d", see {@link Retention}. Versions are kept forever if unset.
+	 */
+	public static final String OPTION_RETENTION = "retention";
+	/**
+	 * Maximum bytes the versions and chunks of the repository take on disk, in bytes or with a K, M, G or T suffix.
+	 * Oldest versions are evicted first.
+	 */
+	public static final String OPTION_QUOTA = "quota";
+	/**
+	 * Milliseconds between two pruning passes.
+	 */
+	public static final String OPTION_PRUNE_INTERVAL = "prune.interval";
+	/**
+	 * Maximum number of versions deleted per second while pruning, 0 for no limit.
+	 */
+	public static final String OPTION_PRUNE_RATE = "prune.rate";
+	/**
+	 * How uncompressed versions are copied: "auto", "reflink", "transfer" or "stream", see {@link Copier}.
+	 */
+	public static final String OPTION_COPY = "copy";
+	/**
+	 * Digest algorithm computed while storing each version, e.g. "SHA-256", kept in the version index. None if unset.
+	 */
+	public static final String OPTION_DIGEST = "digest";
+	/**
+	 * Number of times a file modified while it was stored is tried again.
+	 */
+	public static final String OPTION_RETRIES = "retries";
+	/**
+	 * Milliseconds before the first retry, doubled on each further retry.
+	 */
+	public static final String OPTION_RETRY_DELAY = "retry.delay";
+	/**
+	 * When written versions are synced to disk: "file", "batch" or "none", see {@link Durability}.
+	 */
+	public static final String OPTION_DURABILITY = "durability";
+	/**
+	 * Milliseconds between two syncs in batch durability.
+	 */
+	public static final String OPTION_SYNC_INTERVAL = "sync.interval";
+	/**
+	 * Milliseconds a file must stay unchanged before it is backed up, see {@link EventFilter}.
+	 */
+	public static final String OPTION_QUIET_PERIOD = "quiet.period";
+	/**
+	 * Milliseconds between the deletion of a file and the creation of a file with the same file key, size and
+	 * modification time, for the two to be recorded as a rename. Defaults to the quiet period.
+	 */
+	public static final String OPTION_RENAME_WINDOW = "rename.window";
+	public static final String STORAGE_PLAIN = "plain";
+	public static final String STORAGE_CHUNK = "chunk";
+	public static final String STORAGE_DELTA = "delta";
+	private static final String METADATA = ".filehistory";
+	private static final String CONFIG = "repository.properties";
+	private static final String INDEX = "index";
+	private static final String SCAN_STATE = "scan";
+	private static final String JOURNAL = "journal";
+	private static final String STAGING = "staging";
+	private static final String TMP = "tmp"; // versions rebuilt by delta storage
+	private static final String LOCK = "lock";
+	private static final int MAX_RECENT = 65536;
+	private static final int MAX_RENAMES = 64;
+	/**
+	 * Version times in names, milliseconds are only written when not zero, so names of versions with whole seconds
+	 * are the same as in repositories written before millisecond resolution.
+	 */
+	private static final DateTimeFormatter ISO8601 =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH_mm_ss'Z'", Locale.ROOT).withZone(ZoneOffset.UTC);
+	private static final DateTimeFormatter ISO8601_MILLIS =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH_mm_ss.SSS'Z'", Locale.ROOT).withZone(ZoneOffset.UTC);
+	private static final DateTimeFormatter ISO8601_PARSER = new DateTimeFormatterBuilder()
+			.appendPattern("yyyy-MM-dd'T'HH_mm_ss")
+			.optionalStart().appendFraction(ChronoField.MILLI_OF_SECOND, 3, 3, true).optionalEnd()
+			.appendLiteral('Z')
+			.toFormatter(Locale.ROOT).withZone(ZoneOffset.UTC);
 	private static final Pattern REPOSITORY_FILENAME = Pattern.compile(
-			"^(.*?) \\((\\d{4}-\\d{2}-\\d{2}T\\d{2}_\\d{2}_\\d{2}Z)\\)(\\.[^.]*)?$");
+			"^(.*?) \\((\\d{4}-\\d{2}-\\d{2}T\\d{2}_\\d{2}_\\d{2}(?:\\.\\d{3})?Z)\\)(\\.[^.]*)?$");
 
-	static {
-		ISO8601.setTimeZone(TimeZone.getTimeZone("UTC"));
-	}
-
-	private final BlockingQueue<String> tasks;
 	private final Logger log;
-	private final Thread backupThread;
-	private final String path;
+	private final BackupQueue queue;
+	private final Path root;
+	private final MirrorPaths mirrors;
+	private final Storage storage;
+	private final VersionIndex index;
+	private final ScanState scanState;
+	private final Durability durability;
+	private final Journal journal;
+	private final Path indexFile;
+	private final Path staging;
+	private final FileChannel lock;
+	private final AtomicLong staged = new AtomicLong();
+	private final Metrics.Counter storedBytes, storedVersions, backupErrors, backupTorn, deletions, renames;
+	private final Metrics.Histogram backupLatency;
+	private final Retention retention;
+	private final Object[] locks = new Object[256];
+	// held shared while a version is stored, exclusively while unreferenced chunks are collected
+	private final ReadWriteLock gcLock = new ReentrantReadWriteLock();
+	private final Consumer<WatcherEvent> processor = event -> process(event, 0, false);
+	private final boolean sharedQueue;
+	private final String digest;
+	private final int retries;
+	private final long retryDelay;
+	private final long renameWindow;
+	// deleted and created files not paired yet, by identity, see ScanState.identityOf
+	private final Map<String, RecentEvent> recentDeletes = recentMap();
+	private final Map<String, RecentEvent> recentCreates = recentMap();
 	private boolean closed = false;
 
+	private static final class RecentEvent {
+		final String key;
+		final long time;
+
+		RecentEvent(String key, long time) {
+			this.key = key;
+			this.time = time;
+		}
+	}
+
 	public Repository(String path) throws IOException {
-		this(path, null);
+		this(path, new Logger((Consumer<String>) null));
 	}
 
 	public Repository(String path, Logger logger) throws IOException {
+		this(path, logger, new Properties());
+	}
+
+	/**
+	 * @param options see OPTION_* constants
+	 */
+	public Repository(String path, Logger logger, Properties options) throws IOException {
+		this(path, logger, options, null, new Metrics());
+	}
+
+	/**
+	 * @param queue   backup pool shared with other repositories, or null to create one from the options.
+	 *                A shared queue must be closed before the repository.
+	 * @param metrics registry shared with other repositories
+	 */
+	Repository(String path, Logger logger, Properties options, BackupQueue queue, Metrics metrics)
+			throws IOException {
 		log = logger;
+		storedBytes = metrics.counter("filehistory_backup_bytes_total", "Bytes of source files backed up", "");
+		storedVersions = metrics.counter("filehistory_backup_versions_total", "Versions stored", "");
+		backupErrors = metrics.counter("filehistory_backup_errors_total", "Backups failed with an error", "");
+		backupTorn = metrics.counter("filehistory_backup_torn_total",
+				"Versions discarded because the file was modified while being stored", "");
+		deletions = metrics.counter("filehistory_deletions_total", "Tombstones written for deleted files", "");
+		renames = metrics.counter("filehistory_renames_total", "Deleted and created files paired as a rename", "");
+		backupLatency = metrics.histogram("filehistory_backup_seconds", "Time to store one version", "",
+				Metrics.LATENCY_BOUNDS);
 		File repo = new File(path);
 		if (!repo.exists()) {
 			if (!repo.mkdirs()) {
@@ -47,49 +203,331 @@ public class Repository implements Consumer<WatcherEvent> {
 		} else if (!repo.isDirectory()) {
 			throw new IOException("path must be a directory: " + repo.toString());
 		}
-		this.path = path;
-		tasks = new LinkedBlockingQueue<>();
-		backupThread = new Thread(() -> {
-			try {
-				while (!closed && !Thread.interrupted()) {
-					String task = tasks.take();
-					if ("".equals(task)) {
-						return;
+		root = Paths.get(path).toAbsolutePath();
+		mirrors = new MirrorPaths(root);
+		durability = new Durability(options.getProperty(OPTION_DURABILITY, Durability.BATCH),
+				Long.parseLong(options.getProperty(OPTION_SYNC_INTERVAL, "1000")), log);
+		// locked before the config of a new repository is written
+		lock = lock(Files.createDirectories(root.resolve(METADATA)).resolve(LOCK));
+		storage = openStorage(root.resolve(METADATA), options, durability);
+		indexFile = root.resolve(METADATA).resolve(INDEX);
+		final boolean rebuild = !Files.exists(indexFile);
+		index = new VersionIndex(indexFile);
+		if (rebuild) {
+			rebuildIndex();
+		}
+		staging = Files.createDirectories(root.resolve(METADATA).resolve(STAGING));
+		journal = new Journal(root.resolve(METADATA).resolve(JOURNAL));
+		recover();
+		measureVersions();
+		scanState = new ScanState(root.resolve(METADATA).resolve(SCAN_STATE), durability);
+		digest = options.getProperty(OPTION_DIGEST);
+		if (digest != null) {
+			SourceFile.newDigest(digest); // fail early on unknown algorithms
+		}
+		retries = Integer.parseInt(options.getProperty(OPTION_RETRIES, "3"));
+		retryDelay = Long.parseLong(options.getProperty(OPTION_RETRY_DELAY, "500"));
+		renameWindow = Long.parseLong(options.getProperty(OPTION_RENAME_WINDOW,
+				options.getProperty(OPTION_QUIET_PERIOD, "30000")));
+		sharedQueue = queue != null;
+		this.queue = sharedQueue ? queue : createQueue(options);
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		final String policy = options.getProperty(OPTION_RETENTION, "");
+		final long quota = Options.parseSize(options.getProperty(OPTION_QUOTA, "0"));
+		if (!policy.isEmpty() || quota > 0) {
+			retention = new Retention(this, index, log, policy, quota,
+					Long.parseLong(options.getProperty(OPTION_PRUNE_INTERVAL, "600000")),
+					Integer.parseInt(options.getProperty(OPTION_PRUNE_RATE, "50")));
+			retention.start();
+		} else {
+			retention = null;
+		}
+	}
+
+	/**
+	 * Keeps other processes, e.g. a restore, from opening the repository while it is in use.
+	 */
+	private static FileChannel lock(Path file) throws IOException {
+		final FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			if (ch.tryLock() != null) {
+				return ch; // released when closed
+			}
+		} catch (OverlappingFileLockException ignored) {
+			// opened twice in this JVM
+		}
+		ch.close();
+		throw new IOException("repository is in use: " + file.getParent().getParent());
+	}
+
+	static BackupQueue createQueue(Properties options) {
+		final int workers = Integer.parseInt(options.getProperty(OPTION_WORKERS,
+				Integer.toString(Math.min(4, Runtime.getRuntime().availableProcessors()))));
+		final int capacity = Integer.parseInt(options.getProperty(OPTION_QUEUE, "4096"));
+		return new BackupQueue(workers, capacity);
+	}
+
+	private static Map<String, RecentEvent> recentMap() {
+		return new LinkedHashMap<>() {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, RecentEvent> eldest) {
+				return size() > MAX_RECENT;
+			}
+		};
+	}
+
+	/**
+	 * Serializes changes to the versions of the same file: a backup picking its previous version or moving a new
+	 * version into place, and a delete.
+	 */
+	private Object lockOf(String key) {
+		return locks[(key.hashCode() & 0x7fffffff) % locks.length];
+	}
+
+	private static Storage openStorage(Path metadata, Properties options, Durability durability)
+			throws IOException {
+		final Path config = metadata.resolve(CONFIG);
+		final Properties properties = new Properties();
+		if (Files.exists(config)) {
+			try (Reader reader = Files.newBufferedReader(config)) {
+				properties.load(reader);
+			}
+		} else {
+			final String[] existing = metadata.getParent().toFile().list((dir, name) -> !name.equals(METADATA));
+			if (existing == null || existing.length == 0) {
+				for (String key : new String[]{OPTION_STORAGE, OPTION_KEYFRAME, OPTION_COMPRESSION,
+						OPTION_COMPRESSION_SKIP}) {
+					if (options.getProperty(key) != null) {
+						properties.setProperty(key, options.getProperty(key));
 					}
+				}
+			} // else: created before storage modes existed
+			try (Writer writer = Files.newBufferedWriter(config)) {
+				properties.store(writer, "FileHistory repository");
+			}
+		}
+		final Compression compression = new Compression(
+				properties.getProperty(OPTION_COMPRESSION, Compression.NONE),
+				properties.getProperty(OPTION_COMPRESSION_SKIP, Compression.DEFAULT_SKIP));
+		final String mode = properties.getProperty(OPTION_STORAGE, STORAGE_PLAIN);
+		switch (mode) {
+		case STORAGE_PLAIN:
+			return new PlainStorage(compression, new Copier(options.getProperty(OPTION_COPY, Copier.AUTO)));
+		case STORAGE_CHUNK:
+			return new ChunkStorage(metadata.resolve("objects"), compression, durability);
+		case STORAGE_DELTA:
+			return new DeltaStorage(metadata.resolve(TMP),
+					Integer.parseInt(properties.getProperty(OPTION_KEYFRAME, "16")), compression, durability);
+		}
+		throw new IOException("unknown storage mode: " + mode);
+	}
+
+	private static String toKey(Path relative) {
+		return relative.toString().replace(File.separatorChar, '/');
+	}
+
+	private MirrorPaths.Mirror mirrorOf(File file) {
+		return mirrors.get(file.toPath().toAbsolutePath());
+	}
+
+	/**
+	 * Recreates the version index from the files in the repository.
+	 *
+	 * @return number of versions indexed
+	 */
+	public int rebuildIndex() throws IOException {
+		final Map<String, NavigableMap<Long, VersionIndex.Entry>> content = new HashMap<>();
+		final Path metadata = root.resolve(METADATA);
+		Files.walkFileTree(root, new SimpleFileVisitor<>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				return dir.equals(metadata) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Matcher m = REPOSITORY_FILENAME.matcher(file.getFileName().toString());
+				if (!m.find()) {
+					log.warning("Non repository file: {}", file);
+					return FileVisitResult.CONTINUE;
+				}
+				String name = m.group(1), ext = m.group(3);
+				if (ext != null) {
+					name += ext;
+				}
+				final long time;
+				try {
+					time = parseTime(m.group(2));
+				} catch (DateTimeParseException e) {
+					return FileVisitResult.CONTINUE;
+				}
+				final String key = toKey(root.relativize(file.resolveSibling(name)));
+				content.computeIfAbsent(key, k -> new TreeMap<>())
+						.put(time, new VersionIndex.Entry(time, storage.size(file), null, baseOf(file), attrs.size()));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		index.reset(content);
+		int count = 0;
+		for (Map<Long, VersionIndex.Entry> entries : content.values()) {
+			count += entries.size();
+		}
+		log.info("Index rebuilt: {} versions", count);
+		return count;
+	}
+
+	/**
+	 * Removes staged files of interrupted backups and rebuilt versions of interrupted restores, and checks versions
+	 * moved into place but not known to be durable.
+	 */
+	private void recover() throws IOException {
+		for (Path dir : new Path[]{staging, root.resolve(METADATA).resolve(TMP)}) {
+			if (!Files.isDirectory(dir)) {
+				continue;
+			}
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+				for (Path file : files) {
+					Files.delete(file);
+				}
+			}
+		}
+		int recovered = 0, discarded = 0;
+		for (Journal.Record record : journal.uncommitted()) {
+			final Path target = versionPath(mirrors.ofKey(record.key), record.time);
+			if (isIntact(target, record.size)) {
+				if (!index.contains(record.key, record.time)) {
+					index.put(record.key, new VersionIndex.Entry(record.time, record.size, null, baseOf(target),
+							Files.size(target)));
+				}
+				recovered++;
+			} else {
+				Files.deleteIfExists(target);
+				if (index.contains(record.key, record.time)) {
+					index.remove(record.key, record.time);
+				}
+				discarded++;
+			}
+		}
+		if (!journal.uncommitted().isEmpty()) {
+			log.warning("Interrupted backups: {} recovered, {} discarded", recovered, discarded);
+		}
+		journal.reset();
+	}
+
+	/**
+	 * Records the size on disk of versions indexed before it was kept in the index.
+	 */
+	private void measureVersions() throws IOException {
+		for (String key : index.keys()) {
+			final MirrorPaths.Mirror mirror = mirrors.ofKey(key);
+			for (VersionIndex.Entry entry : index.get(key).values()) {
+				if (entry.stored < 0) {
+					long stored = 0;
 					try {
-						backup(task);
-					} catch (IOException e) {
-						e.printStackTrace();
+						stored = Files.size(versionPath(mirror, entry.time));
+					} catch (NoSuchFileException ignored) {
 					}
+					index.put(key, new VersionIndex.Entry(entry.time, entry.size, entry.digest, entry.base, stored));
 				}
-			} catch (InterruptedException ignored) {
 			}
-		});
-		backupThread.start();
+		}
 	}
 
-	private static String sanitizeFilename(String name) {
-		return name.replaceAll("[:\\\\/*?|<>]", "_");
+	private boolean isIntact(Path target, long size) {
+		if (!Files.exists(target)) {
+			return false;
+		}
+		try (InputStream in = storage.open(target)) {
+			final byte[] buf = new byte[65536];
+			long total = 0;
+			for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+				total += n;
+			}
+			return total == size;
+		} catch (IOException e) {
+			return false;
+		}
 	}
 
-	private static String[] sanitizePath(String path) {
-		String[] parts = path.split(Pattern.quote(File.separator));
-		for (int i = 0; i < parts.length; i++) {
-			parts[i] = sanitizeFilename(parts[i]);
+	/**
+	 * @return time of the version the one at target is stored as a delta against, or -1
+	 */
+	private long baseOf(Path target) throws IOException {
+		final String base = storage.baseOf(target);
+		if (base == null) {
+			return -1;
+		}
+		final Matcher m = REPOSITORY_FILENAME.matcher(base);
+		if (!m.find()) {
+			return -1;
 		}
-		return parts;
+		try {
+			return parseTime(m.group(2));
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	private static String formatTime(long time) {
+		final Instant instant = Instant.ofEpochMilli(time);
+		return time % 1000 == 0 ? ISO8601.format(instant) : ISO8601_MILLIS.format(instant);
 	}
 
-	@Override
-	public void accept(WatcherEvent watcherEvent) {
+	private static long parseTime(String text) {
+		return Instant.from(ISO8601_PARSER.parse(text)).toEpochMilli();
+	}
+
+	/**
+	 * Queues an event for the backup workers.
+	 *
+	 * @return false if the queue is full, the event should be offered again later
+	 */
+	public boolean offer(WatcherEvent watcherEvent) {
 		if (closed) {
 			throw new IllegalStateException("repository is closed");
 		}
+		return queue.offer(watcherEvent, processor);
+	}
+
+	public Path getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return total size of all versions, as the files were before storing
+	 */
+	long getStoredSize() {
+		return index.totalSize();
+	}
+
+	/**
+	 * @return state of backed up files, used by {@link Watcher} to skip unchanged files on startup
+	 */
+	public ScanState getScanState() {
+		return scanState;
+	}
+
+	/**
+	 * @param attempt number of times the backup was tried before
+	 * @param renamed whether an earlier attempt recorded the file as renamed
+	 */
+	private void process(WatcherEvent watcherEvent, int attempt, boolean renamed) {
 		switch (watcherEvent.getEvent()) {
 		case WatcherEvent.EVENT_CREATE:
 		case WatcherEvent.EVENT_MODIFY:
 			try {
-				backup(watcherEvent.getPath());
+				backup(watcherEvent, attempt, renamed);
+			} catch (IOException e) {
+				backupErrors.inc();
+				e.printStackTrace();
+				log.error(e.getLocalizedMessage());
+			}
+			break;
+		case WatcherEvent.EVENT_DELETE:
+			try {
+				deleted(watcherEvent.getPath(), watcherEvent.timestamp);
 			} catch (IOException e) {
 				e.printStackTrace();
 				log.error(e.getLocalizedMessage());
@@ -98,94 +536,508 @@ public class Repository implements Consumer<WatcherEvent> {
 		}
 	}
 
-	private String getRepositoryName(File file, Date date) {
-		String[] parts = sanitizePath(file.getAbsolutePath());
+	private static Path versionPath(MirrorPaths.Mirror mirror, long time) {
+		return mirror.dir.resolve(mirror.base + " (" + formatTime(time) + ")" + mirror.ext);
+	}
 
-		Matcher m = FILENAME.matcher(parts[parts.length - 1]);
-		if (!m.find()) {
-			throw new IllegalArgumentException("pattern mismatch");
+	/**
+	 * @return keys that held the history of the file at key, newest name first, each with the last time the file
+	 * had that name
+	 */
+	private List<Map.Entry<String, Long>> historyOf(String key) {
+		final List<Map.Entry<String, Long>> result = new ArrayList<>(1);
+		long until = Long.MAX_VALUE;
+		while (true) {
+			result.add(new AbstractMap.SimpleImmutableEntry<>(key, until));
+			final Map.Entry<Long, String> rename = index.renamedFrom(key, until);
+			if (rename == null || result.size() >= MAX_RENAMES) {
+				return result;
+			}
+			key = rename.getValue();
+			until = rename.getKey();
+		}
+	}
+
+	/**
+	 * @return key of the name the file at key had when the version at time was stored
+	 */
+	private String keyOfVersion(String key, long time) {
+		for (Map.Entry<String, Long> name : historyOf(key)) {
+			if (time <= name.getValue() && index.contains(name.getKey(), time)) {
+				return name.getKey();
+			}
 		}
-		String ext = m.group(2);
-		parts[parts.length - 1] = m.group(1) + " (" + ISO8601.format(date) + ")" + (ext != null ? ext : "");
+		return key;
+	}
+
+	/**
+	 * @param file absolute path of a source file
+	 * @return path of a version of file in the repository
+	 */
+	Path getVersionPath(Path file, long time) {
+		return versionPath(mirrors.get(file), time);
+	}
 
-		return Paths.get(path, parts).toString();
+	/**
+	 * @param dir absolute path of a source directory
+	 * @return prefix of the index keys of all files under dir, "" for the file system root
+	 */
+	String keyPrefixOf(Path dir) {
+		try {
+			return mirrors.get(dir).key + "/";
+		} catch (IllegalArgumentException e) {
+			return "";
+		}
+	}
+
+	VersionIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @param key index key of a file
+	 */
+	InputStream openVersion(String key, long time) throws IOException {
+		return storage.open(versionPath(mirrors.ofKey(key), time));
 	}
 
 	public void fetchVersion(File file, Date version, File to) throws IOException {
-		Files.copy(Paths.get(getRepositoryName(file, version)), to.toPath(),
-				StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+		fetchVersion(keyOfVersion(mirrorOf(file).key, version.getTime()), version.getTime(), to);
+	}
+
+	public void fetchVersion(FileVersion version, File to) throws IOException {
+		fetchVersion(version.key, version.getTime(), to);
+	}
+
+	private void fetchVersion(String key, long time, File to) throws IOException {
+		try (InputStream in = storage.open(versionPath(mirrors.ofKey(key), time))) {
+			Files.copy(in, to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		if (!to.setLastModified(time)) {
+			log.warning("Failed to set modification time: {}", to);
+		}
 	}
 
 	public void deleteVersion(File file, Date version) throws IOException {
-		Files.delete(Paths.get(getRepositoryName(file, version)));
+		deleteVersion(keyOfVersion(mirrorOf(file).key, version.getTime()), version.getTime());
+	}
+
+	public void deleteVersion(FileVersion version) throws IOException {
+		deleteVersion(version.key, version.getTime());
+	}
+
+	void deleteVersion(String key, long time) throws IOException {
+		synchronized (lockOf(key)) {
+			final MirrorPaths.Mirror mirror = mirrors.ofKey(key);
+			final NavigableMap<Long, VersionIndex.Entry> entries = index.get(key);
+			final Long previous = entries.lowerKey(time);
+			final List<Long> dependents = index.dependents(key, time);
+			final List<Path> paths = new ArrayList<>(dependents.size());
+			for (long dependent : dependents) {
+				paths.add(versionPath(mirror, dependent));
+			}
+			try {
+				storage.delete(versionPath(mirror, time),
+						previous != null ? versionPath(mirror, previous) : null, paths);
+			} catch (NoSuchFileException ignored) {
+			}
+			// the dependents are based on previous or keyframes now
+			for (int i = 0; i < dependents.size(); i++) {
+				final VersionIndex.Entry entry = entries.get(dependents.get(i));
+				if (entry != null && Files.exists(paths.get(i))) {
+					index.put(key, new VersionIndex.Entry(entry.time, entry.size, entry.digest, baseOf(paths.get(i)),
+							Files.size(paths.get(i))));
+				}
+			}
+			index.remove(key, time);
+		}
 	}
 
+	/**
+	 * @return bytes taken on disk by all versions and chunks, from running totals, metadata is not included
+	 */
+	long diskUsage() {
+		final long usage = index.storedSize();
+		return storage instanceof ChunkStorage ? usage + ((ChunkStorage) storage).chunkBytes() : usage;
+	}
+
+	/**
+	 * Reclaims space no longer referenced by any version, only meaningful for chunk storage.
+	 * Backups only wait while the collection starts and while unreferenced chunks are removed, chunks stored by
+	 * backups in between are kept.
+	 *
+	 * @return number of objects removed
+	 */
+	public int collectGarbage() throws IOException {
+		if (!(storage instanceof ChunkStorage)) {
+			return 0;
+		}
+		synchronized (gcLock) { // one collection at a time
+			final ChunkStorage chunks = (ChunkStorage) storage;
+			gcLock.writeLock().lock();
+			try {
+				chunks.beginCollection(); // the manifests of backups in flight are in place now
+			} finally {
+				gcLock.writeLock().unlock();
+			}
+			final Set<String> referenced;
+			try {
+				referenced = chunks.mark(root, log);
+			} catch (IOException | RuntimeException e) {
+				chunks.abortCollection();
+				throw e;
+			}
+			gcLock.writeLock().lock();
+			try {
+				return chunks.sweep(referenced);
+			} finally {
+				gcLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return versions of file in ascending order, including those stored under former names of a renamed file
+	 */
 	public List<Date> listVersions(File file) {
-		String[] parts = sanitizePath(file.getAbsolutePath());
+		final List<Map.Entry<String, Long>> names = historyOf(mirrorOf(file).key);
+		final Collection<Long> times = names.size() == 1 ?
+				index.get(names.get(0).getKey()).keySet() : mergeHistory(names).keySet();
+		List<Date> result = new ArrayList<>(times.size());
+		for (long time : times) {
+			result.add(new Date(time));
+		}
+		return result;
+	}
 
-		String filename = sanitizeFilename(file.getName());
-		List<Date> result = new ArrayList<>();
+	/**
+	 * @return number of versions of file, see {@link #listVersions(File)}
+	 */
+	public int countVersions(File file) {
+		final List<Map.Entry<String, Long>> names = historyOf(mirrorOf(file).key);
+		return names.size() == 1 ? index.get(names.get(0).getKey()).size() : mergeHistory(names).size();
+	}
 
-		File parent = new File(Paths.get(path, parts).toString()).getParentFile();
-		if (parent.exists() && parent.isDirectory()) {
-			File[] files = parent.listFiles();
-			if (files != null) {
-				for (File f : files) {
-					if (!f.isFile()) {
-						continue;
-					}
-					Matcher m = REPOSITORY_FILENAME.matcher(f.getName());
-					if (!m.find()) {
-						final String message = "Non repository file: " + f.getAbsolutePath();
-						System.err.println(message);
-						log.warning(message);
-						continue;
-					}
-					String name = m.group(1), ext = m.group(3);
-					if (ext != null) {
-						name += ext;
-					}
-					if (!filename.equals(name)) {
-						continue;
-					}
-					try {
-						result.add(ISO8601.parse(m.group(2)));
-					} catch (ParseException ignored) {
-					}
+	/**
+	 * Lists one page of the versions of file, newest first. Skipping is linear in offset, but a page does not
+	 * copy the other versions.
+	 *
+	 * @return at most limit versions, starting at offset
+	 */
+	public List<FileVersion> listVersions(File file, int offset, int limit) {
+		final List<Map.Entry<String, Long>> names = historyOf(mirrorOf(file).key);
+		final List<FileVersion> result = new ArrayList<>(Math.min(limit, 1024));
+		if (names.size() == 1) {
+			final String key = names.get(0).getKey();
+			for (VersionIndex.Entry entry : index.get(key).descendingMap().values()) {
+				if (result.size() >= limit) {
+					break;
+				}
+				if (offset-- <= 0) {
+					result.add(new FileVersion(key, entry));
 				}
 			}
+			return result;
+		}
+		for (FileVersion version : mergeHistory(names).descendingMap().values()) {
+			if (result.size() >= limit) {
+				break;
+			}
+			if (offset-- <= 0) {
+				result.add(version);
+			}
 		}
 		return result;
 	}
 
-	private void backup(String name) throws IOException {
-		final File file = new File(name);
-		if (!file.exists() || !file.isFile()) {
+	/**
+	 * @param names as returned by {@link #historyOf}
+	 * @return versions stored under all names by time, a later name wins for versions with the same time
+	 */
+	private NavigableMap<Long, FileVersion> mergeHistory(List<Map.Entry<String, Long>> names) {
+		final NavigableMap<Long, FileVersion> result = new TreeMap<>();
+		for (Map.Entry<String, Long> name : names) {
+			for (VersionIndex.Entry entry : index.get(name.getKey()).headMap(name.getValue(), true).values()) {
+				result.putIfAbsent(entry.time, new FileVersion(name.getKey(), entry));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Answered from the tombstones in the index, files created again since their deletion are not listed.
+	 *
+	 * @param dir   absolute path of a source directory
+	 * @param since milliseconds since epoch
+	 * @return files under dir deleted or renamed away at or after since, ordered by path
+	 */
+	public List<Deletion> listDeleted(Path dir, long since) {
+		final String prefix = keyPrefixOf(dir);
+		final List<Deletion> result = new ArrayList<>();
+		for (String key : VersionIndex.under(index.deletedKeys(), prefix)) {
+			final VersionIndex.Tombstone tombstone = index.deletedAt(key, Long.MAX_VALUE);
+			if (tombstone == null || tombstone.time < since) {
+				continue;
+			}
+			final NavigableMap<Long, VersionIndex.Entry> versions = index.get(key);
+			result.add(new Deletion(sourceOf(key, dir, prefix), tombstone.time,
+					tombstone.renamedTo != null ? sourceOf(tombstone.renamedTo, dir, prefix) : null,
+					versions.isEmpty() ? -1 : versions.lastKey()));
+		}
+		return result;
+	}
+
+	/**
+	 * @param prefix key prefix of dir, as returned by {@link #keyPrefixOf}
+	 * @return source path of the file at key, with names as sanitized in the repository
+	 */
+	private static Path sourceOf(String key, Path dir, String prefix) {
+		final String[] dirParts = prefix.isEmpty() ? new String[0] : prefix.split("/");
+		final String[] parts = key.split("/");
+		int common = 0;
+		while (common < dirParts.length && common < parts.length && dirParts[common].equals(parts[common])) {
+			common++;
+		}
+		Path result = dir;
+		for (int i = common; i < dirParts.length && result.getParent() != null; i++) {
+			result = result.getParent();
+		}
+		for (int i = common; i < parts.length; i++) {
+			result = result.resolve(parts[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes tombstones for a deleted file, or for all backed up files under a deleted directory. A deleted file
+	 * is paired with a recently created file of the same identity as a rename.
+	 */
+	private void deleted(Path path, long time) throws IOException {
+		final String name = path.toString();
+		final List<String> files;
+		if (scanState.contains(name)) {
+			files = List.of(name);
+		} else if (!VersionIndex.under(index.keys(), keyPrefixOf(path)).isEmpty()) { // a directory
+			files = scanState.listUnder(name);
+		} else {
+			return; // never backed up
+		}
+		for (String file : files) {
+			final String identity = scanState.identityOf(file);
+			scanState.remove(file);
+			final String key = mirrors.get(Paths.get(file)).key;
+			String renamedTo = null;
+			if (identity != null) {
+				synchronized (recentDeletes) {
+					final RecentEvent created = recentCreates.remove(identity);
+					if (created != null && !created.key.equals(key) &&
+							Math.abs(created.time - time) <= renameWindow) {
+						renamedTo = created.key;
+					} else {
+						recentDeletes.put(identity, new RecentEvent(key, time));
+					}
+				}
+			}
+			synchronized (lockOf(key)) {
+				index.putTombstone(key, new VersionIndex.Tombstone(time, renamedTo));
+			}
+			deletions.inc();
+			if (renamedTo != null) {
+				renamed(key, renamedTo, time);
+			} else {
+				log.info("Deleted: {}", file);
+			}
+		}
+		durability.written(indexFile);
+	}
+
+	/**
+	 * Checks if a file seen for the first time was renamed from a recently deleted file.
+	 *
+	 * @return true if it was
+	 */
+	private boolean created(String key, BasicFileAttributes attrs, long time) throws IOException {
+		final String identity = ScanState.identityOf(attrs);
+		if (identity == null) {
+			return false;
+		}
+		final RecentEvent deleted;
+		synchronized (recentDeletes) {
+			final RecentEvent candidate = recentDeletes.remove(identity);
+			if (candidate != null && !candidate.key.equals(key) && Math.abs(candidate.time - time) <= renameWindow) {
+				deleted = candidate;
+			} else {
+				deleted = null;
+				recentCreates.put(identity, new RecentEvent(key, time));
+			}
+		}
+		if (deleted != null) {
+			synchronized (lockOf(deleted.key)) {
+				index.putTombstone(deleted.key, new VersionIndex.Tombstone(deleted.time, key));
+			}
+			renamed(deleted.key, key, deleted.time);
+			durability.written(indexFile);
+			return true;
+		}
+		return false;
+	}
+
+	private void renamed(String from, String to, long time) throws IOException {
+		index.putRename(to, time, from);
+		renames.inc();
+		log.info("Renamed: {} -> {}", from, to);
+	}
+
+	/**
+	 * Removes tombstones of a deleted file that exists again with a version not newer than its deletion, e.g. when
+	 * restored with its original modification time.
+	 */
+	private void undelete(String key, long lastModified) throws IOException {
+		final NavigableMap<Long, VersionIndex.Tombstone> tombstones = index.tombstones(key);
+		if (tombstones.isEmpty() || tombstones.lastKey() < lastModified) {
+			return;
+		}
+		for (long time : new ArrayList<>(tombstones.tailMap(lastModified, true).keySet())) {
+			index.removeTombstone(key, time);
+		}
+	}
+
+	/**
+	 * Stores a version of file. If the file is modified while being stored, the torn version is discarded and the
+	 * backup is offered to the queue again with exponential backoff. A file still changing after all retries is
+	 * skipped, its modifications cause new events anyway.
+	 */
+	private void backup(WatcherEvent watcherEvent, int attempt, boolean renamed) throws IOException {
+		final Path file = watcherEvent.getPath();
+		final MirrorPaths.Mirror mirror = mirrors.get(file);
+		final BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
 			return;
 		}
-		String repoPath = getRepositoryName(file, new Date(file.lastModified()));
-		final File repoFile = new File(repoPath);
-		if (repoFile.exists()) { // already has a backup
+		if (!attrs.isRegularFile()) {
 			return;
 		}
-		final File parent = repoFile.getParentFile();
-		if (!parent.exists()) {
-			if (!parent.mkdirs()) {
-				throw new IOException("mkdirs failed: " + parent.toString());
+		final long lastModified = attrs.lastModifiedTime().toMillis();
+		if (attempt == 0 && !scanState.contains(file.toString())) {
+			renamed = created(mirror.key, attrs, watcherEvent.timestamp);
+		}
+		synchronized (lockOf(mirror.key)) {
+			if (!renamed) {
+				undelete(mirror.key, lastModified);
+			}
+			if (index.contains(mirror.key, lastModified)) { // already has a backup
+				scanState.update(file.toString(), attrs);
+				return;
+			}
+		}
+		final Path repoFile = versionPath(mirror, lastModified);
+		Files.createDirectories(mirror.dir);
+		final long start = System.nanoTime();
+		if (store(mirror, new SourceFile(file, attrs, digest), repoFile)) {
+			backupLatency.observeNanos(System.nanoTime() - start);
+			storedBytes.add(attrs.size());
+			storedVersions.inc();
+			scanState.update(file.toString(), attrs);
+			log.info("{} -> {}", file, repoFile);
+			return;
+		}
+		backupTorn.inc();
+		if (attempt >= retries) {
+			log.warning("Modified during backup, skipped: {}", file);
+			return;
+		}
+		final boolean wasRenamed = renamed;
+		queue.offerLater(watcherEvent, event -> process(event, attempt + 1, wasRenamed), retryDelay << attempt);
+	}
+
+	/**
+	 * Writes a version to the staging directory and moves it into place, so a version is either complete or absent.
+	 * The lock of the file is only held to pick the previous version and to move the new one into place. If the
+	 * previous version is pruned in between, the version is stored again against the one before.
+	 *
+	 * @return false if the source was modified while it was read, nothing is stored then
+	 */
+	private boolean store(MirrorPaths.Mirror mirror, SourceFile source, Path target) throws IOException {
+		final String key = mirror.key;
+		final long time = source.lastModified().toMillis();
+		// same extension for compression.skip
+		final Path temp = staging.resolve(Long.toString(staged.incrementAndGet(), 36) + mirror.ext);
+		while (true) {
+			final Long previous;
+			synchronized (lockOf(key)) {
+				previous = index.get(key).lowerKey(time);
+			}
+			journal.begin(key, time, source.size());
+			durability.writeAhead(journal::force); // before the version is moved into place
+			boolean done = false, delta;
+			gcLock.readLock().lock();
+			try {
+				try {
+					delta = storage.store(source, temp, previous != null ? versionPath(mirror, previous) : null);
+				} catch (IOException e) {
+					if (previous != null && !index.contains(key, previous)) {
+						continue; // pruned while it was read
+					}
+					throw e;
+				}
+				if (!source.isUnchanged()) {
+					return false;
+				}
+				final long stored = Files.size(temp);
+				durability.staged(temp);
+				synchronized (lockOf(key)) {
+					if (previous != null && !index.contains(key, previous)) {
+						continue;
+					}
+					Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					durability.created(target);
+					index.put(key, new VersionIndex.Entry(time, source.size(), source.digest(), delta ? previous : -1,
+							stored));
+				}
+				durability.written(indexFile);
+				done = true;
+			} finally {
+				gcLock.readLock().unlock();
+				if (!done) {
+					Files.deleteIfExists(temp);
+					journal.commit(key, time);
+				}
 			}
+			durability.afterSync(() -> journal.commit(key, time));
+			return true;
 		}
-		Files.copy(file.toPath(), repoFile.toPath(),
-				StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
-		log.info(file.toString() + " -> " + repoPath + "");
+	}
+
+	/**
+	 * Waits until all queued backups are done, including those of other repositories sharing the queue.
+	 */
+	public void flush() throws InterruptedException {
+		queue.awaitIdle();
 	}
 
 	public void close() {
 		if (!closed) {
 			closed = true;
-			backupThread.interrupt();
+			if (retention != null) {
+				retention.interrupt();
+				try {
+					retention.join();
+				} catch (InterruptedException ignored) {
+				}
+			}
+			if (!sharedQueue) {
+				queue.close();
+			}
 			try {
-				backupThread.join();
-			} catch (InterruptedException ignored) {
+				durability.close();
+				journal.close();
+				index.close();
+				scanState.close();
+				lock.close();
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 		}
 	}
@@ -0,0 +1,297 @@
+package me.hexian000.filehistory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Point-in-time restore of a directory tree: every file that existed under the directory at the given time is
+ * restored as its latest version at or before that time.
+ * <p>
+ * The versions are resolved from the version index when the restore is created, and read from the repository only
+ * when restored, either into a directory or streamed into a tar or zip archive without intermediate files.
+ */
+public class Restore {
+	private static final int TAR_BLOCK = 512;
+	private static final long TAR_MAX_SIZE = 077777777777L;
+
+	public static final class Item {
+		private final String key;
+		private final String path;
+		private final long time;
+		private final long size;
+
+		Item(String key, String path, long time, long size) {
+			this.key = key;
+			this.path = path;
+			this.time = time;
+			this.size = size;
+		}
+
+		/**
+		 * @return path relative to the restored directory, separated by '/'
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return time of the restored version
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public long getSize() {
+			return size;
+		}
+	}
+
+	private final Repository repository;
+	private final Logger log;
+	private final List<Item> items = new ArrayList<>();
+	private long totalSize = 0;
+
+	/**
+	 * @param dir  absolute path of a source directory, or of a single file
+	 * @param time milliseconds since epoch
+	 */
+	public Restore(Repository repository, Logger logger, Path dir, long time) {
+		this.repository = repository;
+		log = logger;
+		final VersionIndex index = repository.getIndex();
+		final String prefix = repository.keyPrefixOf(dir);
+		if (!prefix.isEmpty()) {
+			// a single file
+			final String key = prefix.substring(0, prefix.length() - 1);
+			add(index, key, key.substring(key.lastIndexOf('/') + 1), time);
+		}
+		for (String key : VersionIndex.under(index.keys(), prefix)) {
+			add(index, key, key.substring(prefix.length()), time);
+		}
+	}
+
+	private void add(VersionIndex index, String key, String path, long time) {
+		final Map.Entry<Long, VersionIndex.Entry> version = index.versionAt(key, time);
+		if (version != null) {
+			items.add(new Item(key, path, version.getKey(), version.getValue().size));
+			totalSize += version.getValue().size;
+		}
+	}
+
+	/**
+	 * @return files to restore, ordered by path
+	 */
+	public List<Item> getItems() {
+		return Collections.unmodifiableList(items);
+	}
+
+	/**
+	 * @return total size of the files to restore
+	 */
+	public long getTotalSize() {
+		return totalSize;
+	}
+
+	/**
+	 * Restores into target, replacing existing files. Each file is written to a temporary file first and renamed,
+	 * so no partially restored files are left behind.
+	 *
+	 * @param parallelism number of files restored at the same time
+	 * @return number of files failed
+	 */
+	public int copyTo(Path target, int parallelism) throws InterruptedException {
+		final ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+		try {
+			final List<Future<?>> futures = new ArrayList<>(items.size());
+			for (Item item : items) {
+				futures.add(pool.submit(() -> {
+					copy(item, target.resolve(item.path));
+					return null;
+				}));
+			}
+			int failed = 0;
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					failed++;
+					log.error("Restore failed: {}: {}", items.get(i).path, e.getCause());
+				}
+			}
+			return failed;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private void copy(Item item, Path file) throws IOException {
+		Files.createDirectories(file.getParent());
+		final Path temp = file.resolveSibling("." + file.getFileName() + ".restoring");
+		try {
+			try (InputStream in = repository.openVersion(item.key, item.time)) {
+				Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.setLastModifiedTime(temp, FileTime.fromMillis(item.time));
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Writes all files as a zip archive, out is finished but not closed.
+	 *
+	 * @return number of files failed
+	 */
+	public int writeZip(OutputStream out) throws IOException {
+		final ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+		int failed = 0;
+		for (Item item : items) {
+			final InputStream in;
+			try {
+				in = repository.openVersion(item.key, item.time);
+			} catch (IOException e) {
+				failed++;
+				log.error("Restore failed: {}: {}", item.path, e);
+				continue;
+			}
+			try (in) {
+				final ZipEntry entry = new ZipEntry(item.path);
+				entry.setTime(item.time);
+				zip.putNextEntry(entry);
+				in.transferTo(zip);
+				zip.closeEntry();
+			}
+		}
+		zip.finish();
+		return failed;
+	}
+
+	/**
+	 * Writes all files as a POSIX tar archive, out is flushed but not closed.
+	 *
+	 * @return number of files failed
+	 */
+	public int writeTar(OutputStream out) throws IOException {
+		final byte[] buf = new byte[65536];
+		int failed = 0;
+		for (Item item : items) {
+			final InputStream in;
+			try {
+				in = repository.openVersion(item.key, item.time);
+			} catch (IOException e) {
+				failed++;
+				log.error("Restore failed: {}: {}", item.path, e);
+				continue;
+			}
+			try (in) {
+				writeTarHeader(out, item.path, item.size, item.time);
+				long total = 0;
+				for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+					if (total + n <= item.size) {
+						out.write(buf, 0, n);
+					}
+					total += n;
+				}
+				if (total != item.size) {
+					// the header is written already, the archive can not be continued
+					throw new IOException("size mismatch in version of " + item.path);
+				}
+				out.write(new byte[padding(total)]);
+			}
+		}
+		out.write(new byte[TAR_BLOCK * 2]); // end of archive
+		out.flush();
+		return failed;
+	}
+
+	private static int padding(long size) {
+		return (int) ((TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK);
+	}
+
+	/**
+	 * Writes a ustar header, preceded by a pax extended header if the name or size does not fit.
+	 */
+	private static void writeTarHeader(OutputStream out, String name, long size, long time) throws IOException {
+		final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		final boolean longName = nameBytes.length > 100 || nameBytes.length != name.length();
+		if (longName || size > TAR_MAX_SIZE) {
+			final ByteArrayOutputStream pax = new ByteArrayOutputStream();
+			if (longName) {
+				paxRecord(pax, "path", name);
+			}
+			if (size > TAR_MAX_SIZE) {
+				paxRecord(pax, "size", Long.toString(size));
+			}
+			out.write(ustarHeader("PaxHeader", pax.size(), time, 'x'));
+			pax.writeTo(out);
+			out.write(new byte[padding(pax.size())]);
+			name = name.replaceAll("[^\\x20-\\x7e]", "_");
+		}
+		out.write(ustarHeader(name, Math.min(size, TAR_MAX_SIZE), time, '0'));
+	}
+
+	/**
+	 * Appends "length keyword=value\n", the length counts its own digits.
+	 */
+	private static void paxRecord(ByteArrayOutputStream pax, String keyword, String value) {
+		final byte[] record = (" " + keyword + "=" + value + "\n").getBytes(StandardCharsets.UTF_8);
+		int length = record.length;
+		while (length != record.length + Integer.toString(length).length()) {
+			length = record.length + Integer.toString(length).length();
+		}
+		pax.writeBytes(Integer.toString(length).getBytes(StandardCharsets.US_ASCII));
+		pax.writeBytes(record);
+	}
+
+	private static byte[] ustarHeader(String name, long size, long time, char type) {
+		final byte[] header = new byte[TAR_BLOCK];
+		final byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+		octal(header, 100, 8, 0644);
+		octal(header, 108, 8, 0);
+		octal(header, 116, 8, 0);
+		octal(header, 124, 12, size);
+		octal(header, 136, 12, Math.max(0, time / 1000));
+		header[156] = (byte) type;
+		System.arraycopy(("ustar\0" + "00").getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+		for (int i = 148; i < 156; i++) {
+			header[i] = ' ';
+		}
+		long checksum = 0;
+		for (byte b : header) {
+			checksum += b & 0xff;
+		}
+		octal(header, 148, 7, checksum);
+		return header;
+	}
+
+	/**
+	 * Writes value as zero padded octal digits terminated by NUL.
+	 */
+	private static void octal(byte[] header, int offset, int length, long value) {
+		final String digits = Long.toOctalString(value);
+		final int pad = length - 1 - digits.length();
+		for (int i = 0; i < length - 1; i++) {
+			header[offset + i] = (byte) (i < pad ? '0' : digits.charAt(i - pad));
+		}
+		header[offset + length - 1] = 0;
+	}
+}
@@ -0,0 +1,231 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background pruning of old versions, driven by the version index.
+ * <p>
+ * A policy is a list of tiers, each keeping at most one version per interval for versions younger than its age,
+ * e.g. "24h=all,7d=1h,90d=1d,*=30d". Versions older than the last tier are removed, unless it is "*".
+ * The newest version of every file is always kept.
+ * <p>
+ * When a quota is set and the versions and chunks take more bytes on disk than it, the oldest versions are evicted
+ * first. The usage is taken from running totals kept by the version index and chunk storage. Chunks are only freed by garbage collection, in chunk repositories it runs after as many evictions as the space
+ * freed by the previous ones suggests, at most {@value #QUOTA_COLLECT}.
+ * <p>
+ * After a pass that deleted versions, chunks no longer referenced by any version are collected.
+ */
+class Retention extends Thread {
+	private static final int QUOTA_BATCH = 1024;
+	private static final int QUOTA_COLLECT = 64;
+
+	static final class Tier {
+		final long age; // Long.MAX_VALUE for "*"
+		final long interval; // 0 keeps all
+
+		Tier(long age, long interval) {
+			this.age = age;
+			this.interval = interval;
+		}
+	}
+
+	private final Repository repository;
+	private final VersionIndex index;
+	private final Logger log;
+	private final List<Tier> tiers;
+	private final long quota;
+	private final long passInterval;
+	private final long deleteNanos;
+	private long nextDelete = System.nanoTime();
+	private int deleted = 0;
+
+	/**
+	 * @param policy       tiers as described above, or empty to only apply the quota
+	 * @param quota        maximum bytes taken on disk by versions and chunks, or 0 for none
+	 * @param passInterval milliseconds between two pruning passes
+	 * @param rate         maximum versions deleted per second, or 0 for no limit
+	 */
+	Retention(Repository repository, VersionIndex index, Logger logger, String policy, long quota,
+	          long passInterval, int rate) {
+		super("Retention");
+		setDaemon(true);
+		setPriority(MIN_PRIORITY);
+		this.repository = repository;
+		this.index = index;
+		log = logger;
+		tiers = parsePolicy(policy);
+		this.quota = quota;
+		this.passInterval = passInterval;
+		if (rate < 0) {
+			throw new IllegalArgumentException("prune rate must not be negative: " + rate);
+		}
+		deleteNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+	}
+
+	static List<Tier> parsePolicy(String policy) {
+		final List<Tier> tiers = new ArrayList<>();
+		for (String item : policy.split(",")) {
+			item = item.trim();
+			if (item.isEmpty()) {
+				continue;
+			}
+			final int eq = item.indexOf('=');
+			if (eq < 0) {
+				throw new IllegalArgumentException("retention tier must be age=interval: " + item);
+			}
+			final String age = item.substring(0, eq).trim(), interval = item.substring(eq + 1).trim();
+			tiers.add(new Tier("*".equals(age) ? Long.MAX_VALUE : Options.parseDuration(age),
+					"all".equals(interval) ? 0 : Options.parseDuration(interval)));
+		}
+		tiers.sort(Comparator.comparingLong(tier -> tier.age));
+		return tiers;
+	}
+
+	/**
+	 * @param versions all versions of one file in ascending order
+	 * @return times of versions not kept by the tiers
+	 */
+	private List<Long> expired(NavigableMap<Long, VersionIndex.Entry> versions, long now) {
+		final List<Long> result = new ArrayList<>();
+		final Set<Long> buckets = new HashSet<>();
+		int tierIndex = 0;
+		// newest first, the newest version in each bucket is kept
+		for (long time : versions.descendingKeySet().tailSet(versions.lastKey(), false)) {
+			final long age = now - time;
+			while (tierIndex < tiers.size() && age >= tiers.get(tierIndex).age) {
+				tierIndex++;
+				buckets.clear();
+			}
+			if (tierIndex >= tiers.size()) {
+				result.add(time);
+				continue;
+			}
+			final long interval = tiers.get(tierIndex).interval;
+			if (interval > 0 && !buckets.add(Math.floorDiv(time, interval))) {
+				result.add(time);
+			}
+		}
+		return result;
+	}
+
+	private void delete(String key, long time) throws IOException, InterruptedException {
+		final long wait = nextDelete - System.nanoTime();
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+		nextDelete = Math.max(nextDelete, System.nanoTime()) + deleteNanos;
+		repository.deleteVersion(key, time);
+		deleted++;
+	}
+
+	private void thin() throws InterruptedException {
+		final long now = System.currentTimeMillis();
+		for (String key : index.keys()) {
+			final NavigableMap<Long, VersionIndex.Entry> versions = index.get(key);
+			if (versions.size() < 2) {
+				continue;
+			}
+			for (long time : expired(versions, now)) {
+				try {
+					delete(key, time);
+				} catch (IOException e) {
+					log.warning("Prune failed: {} - {}", key, e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void enforceQuota() throws InterruptedException {
+		long usage = repository.diskUsage();
+		int step = 1, pending = 0; // evictions until the next collection, and since the last one
+		long measured = usage;
+		while (usage > quota) {
+			// oldest versions, except the newest of each file
+			final PriorityQueue<Map.Entry<String, Long>> oldest = new PriorityQueue<>(QUOTA_BATCH + 1,
+					Map.Entry.<String, Long>comparingByValue().reversed());
+			for (String key : index.keys()) {
+				final NavigableMap<Long, VersionIndex.Entry> versions = index.get(key);
+				if (versions.size() < 2) {
+					continue;
+				}
+				for (long time : versions.headMap(versions.lastKey(), false).keySet()) {
+					if (oldest.size() >= QUOTA_BATCH && time >= oldest.peek().getValue()) {
+						break;
+					}
+					oldest.add(new AbstractMap.SimpleImmutableEntry<>(key, time));
+					if (oldest.size() > QUOTA_BATCH) {
+						oldest.poll();
+					}
+				}
+			}
+			if (oldest.isEmpty()) {
+				log.warning("Quota exceeded, but only the newest versions are left");
+				return;
+			}
+			final List<Map.Entry<String, Long>> batch = new ArrayList<>(oldest);
+			batch.sort(Map.Entry.comparingByValue());
+			final int before = deleted;
+			for (Map.Entry<String, Long> item : batch) {
+				if (usage <= quota) {
+					return;
+				}
+				try {
+					delete(item.getKey(), item.getValue());
+					usage = repository.diskUsage();
+					if (++pending >= step && collectGarbage() > 0) {
+						usage = repository.diskUsage();
+						final long freed = Math.max(1, (measured - usage) / pending);
+						step = (int) Math.max(1, Math.min(QUOTA_COLLECT, (usage - quota) / freed));
+						measured = usage;
+						pending = 0;
+					}
+				} catch (IOException e) {
+					log.warning("Prune failed: {} - {}", item.getKey(), e.getMessage());
+				}
+			}
+			if (deleted == before) { // every delete failed, retry on next pass
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return number of chunks removed
+	 */
+	private int collectGarbage() {
+		try {
+			final int removed = repository.collectGarbage();
+			if (removed > 0) {
+				log.info("Removed {} unreferenced chunks.", removed);
+			}
+			return removed;
+		} catch (IOException e) {
+			e.printStackTrace();
+			log.error("Garbage collection failed: {}", e.getMessage());
+			return 0;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!isInterrupted()) {
+				deleted = 0;
+				if (!tiers.isEmpty()) {
+					thin();
+				}
+				if (quota > 0) {
+					enforceQuota();
+				}
+				if (deleted > 0) {
+					log.info("Pruned {} versions.", deleted);
+					collectGarbage();
+				}
+				Thread.sleep(passInterval);
+			}
+		} catch (InterruptedException ignored) {
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package me.hexian000.filehistory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends records to a file. When the file exceeds its maximum size it is renamed to "name.1", older files are
+ * shifted up to "name.count" and the oldest is deleted.
+ */
+public class RollingFileLogSink implements LogSink {
+	private final Path file;
+	private final long maxSize;
+	private final int count;
+	private BufferedWriter writer;
+	private long size;
+
+	/**
+	 * @param count number of rolled over files kept
+	 */
+	public RollingFileLogSink(Path file, long maxSize, int count) throws IOException {
+		this.file = file;
+		this.maxSize = maxSize;
+		this.count = count;
+		final Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		open();
+	}
+
+	private void open() throws IOException {
+		writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		size = Files.size(file);
+	}
+
+	private Path rolled(int i) {
+		return file.resolveSibling(file.getFileName() + "." + i);
+	}
+
+	private void roll() throws IOException {
+		writer.close();
+		Files.deleteIfExists(rolled(count));
+		for (int i = count - 1; i >= 1; i--) {
+			if (Files.exists(rolled(i))) {
+				Files.move(rolled(i), rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		if (count > 0) {
+			Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+		} else {
+			Files.delete(file);
+		}
+		open();
+	}
+
+	@Override
+	public void write(List<LogRecord> batch) throws IOException {
+		for (LogRecord record : batch) {
+			if (size >= maxSize) {
+				roll();
+			}
+			final String line = record.toString();
+			writer.write(line);
+			writer.newLine();
+			size += line.length() + 1; // close enough for rolling
+		}
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+}
@@ -0,0 +1,268 @@
+package me.hexian000.filehistory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+/**
+ * Last known size, modification time and file key of every file that has been backed up, persisted as a journal.
+ * <p>
+ * A startup scan uses it to skip files that did not change while the daemon was not running, and the repository
+ * uses it to tell which files a deleted path held and to recognize a renamed file by its identity.
+ * <p>
+ * The journal is buffered and flushed whenever the repository syncs, so it survives the process being killed.
+ */
+public class ScanState {
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+
+	private static final class Record {
+		final long size;
+		final long lastModified;
+		final String fileKey;
+
+		Record(long size, long lastModified, String fileKey) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.fileKey = fileKey;
+		}
+
+		boolean matches(BasicFileAttributes attrs) {
+			return size == attrs.size() && lastModified == attrs.lastModifiedTime().toMillis() &&
+					fileKey.equals(fileKeyOf(attrs));
+		}
+	}
+
+	private final Path file;
+	private final Durability durability;
+	private boolean flushPending = false; // guarded by this
+	// sorted, so the files under a directory are a range
+	private final NavigableMap<String, Record> records = new ConcurrentSkipListMap<>();
+	private DataOutputStream journal;
+	private int journalRecords = 0;
+
+	/**
+	 * A crawl of one subtree. Scans of different subtrees may overlap, so each one keeps its own marks.
+	 */
+	static final class Scan {
+		private final String root;
+		private final Set<String> seen = ConcurrentHashMap.newKeySet();
+		private final Set<String> excluded = ConcurrentHashMap.newKeySet();
+
+		private Scan(String root) {
+			this.root = root;
+		}
+
+		/**
+		 * Marks a file or directory the crawl skipped, its backed up files are not considered deleted.
+		 */
+		void exclude(Path path) {
+			excluded.add(path.toString());
+		}
+
+		private boolean isExcluded(String path) {
+			for (Path p = Paths.get(path); p != null && !p.toString().equals(root); p = p.getParent()) {
+				if (excluded.contains(p.toString())) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	ScanState(Path file, Durability durability) throws IOException {
+		this.file = file;
+		this.durability = durability;
+		final boolean torn = Files.exists(file) && !load();
+		if (torn || (journalRecords > 1024 && journalRecords > records.size() * 2)) {
+			compact();
+		}
+		journal = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)));
+	}
+
+	static String fileKeyOf(BasicFileAttributes attrs) {
+		final Object key = attrs.fileKey();
+		return key != null ? key.toString() : "";
+	}
+
+	/**
+	 * @return file key, size and modification time, which a rename does not change, or null if the file system has
+	 * no file keys
+	 */
+	static String identityOf(BasicFileAttributes attrs) {
+		final String fileKey = fileKeyOf(attrs);
+		return fileKey.isEmpty() ? null :
+				fileKey + ':' + attrs.size() + ':' + attrs.lastModifiedTime().toMillis();
+	}
+
+	/**
+	 * @return false if the journal ends with a torn record
+	 */
+	private boolean load() throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			while (true) {
+				final int op = in.read();
+				if (op < 0) {
+					return true;
+				}
+				final String path = in.readUTF();
+				if (op == OP_PUT) {
+					records.put(path, new Record(in.readLong(), in.readLong(), in.readUTF()));
+				} else if (op == OP_REMOVE) {
+					records.remove(path);
+				} else {
+					throw new IOException("corrupted scan state: " + file);
+				}
+				journalRecords++;
+			}
+		} catch (EOFException | UTFDataFormatException e) {
+			return false; // torn, possibly inside a path
+		}
+	}
+
+	private void compact() throws IOException {
+		final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			for (Map.Entry<String, Record> item : records.entrySet()) {
+				writePut(out, item.getKey(), item.getValue());
+			}
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		journalRecords = records.size();
+	}
+
+	private static void writePut(DataOutputStream out, String path, Record record) throws IOException {
+		out.writeByte(OP_PUT);
+		out.writeUTF(path);
+		out.writeLong(record.size);
+		out.writeLong(record.lastModified);
+		out.writeUTF(record.fileKey);
+	}
+
+	/**
+	 * Records that path has been backed up with these attributes.
+	 */
+	synchronized void update(String path, BasicFileAttributes attrs) {
+		// the map and the journal are changed under the same lock, so they agree on the last update of a path
+		final Record record = new Record(attrs.size(), attrs.lastModifiedTime().toMillis(), fileKeyOf(attrs));
+		final Record old = records.put(path, record);
+		if (old != null && old.size == record.size && old.lastModified == record.lastModified &&
+				old.fileKey.equals(record.fileKey)) {
+			return;
+		}
+		try {
+			writePut(journal, path, record);
+			journalRecords++;
+			flushLater();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Flushes the journal on the next sync, at once unless in batch durability.
+	 */
+	private void flushLater() throws IOException {
+		if (!flushPending) {
+			flushPending = true;
+			durability.afterSync(this::flush);
+		}
+	}
+
+	private synchronized void flush() throws IOException {
+		flushPending = false;
+		journal.flush();
+	}
+
+	boolean contains(String path) {
+		return records.containsKey(path);
+	}
+
+	/**
+	 * @return identity of path when it was last backed up, see {@link #identityOf(BasicFileAttributes)}
+	 */
+	String identityOf(String path) {
+		final Record record = records.get(path);
+		return record != null && !record.fileKey.isEmpty() ?
+				record.fileKey + ':' + record.size + ':' + record.lastModified : null;
+	}
+
+	/**
+	 * @return backed up files under dir
+	 */
+	List<String> listUnder(String dir) {
+		return new ArrayList<>(under(dir));
+	}
+
+	private NavigableSet<String> under(String dir) {
+		final String parent = dir.endsWith(File.separator) ? dir.substring(0, dir.length() - 1) : dir;
+		// every path starting with parent + separator sorts before parent + the next character
+		return records.navigableKeySet().subSet(parent + File.separatorChar, true,
+				parent + (char) (File.separatorChar + 1), false);
+	}
+
+	synchronized void remove(String path) {
+		if (records.remove(path) == null) {
+			return;
+		}
+		try {
+			journal.writeByte(OP_REMOVE);
+			journal.writeUTF(path);
+			journalRecords++;
+			flushLater();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Starts a scan of root, files under it not marked by {@link #isUnchanged} or {@link Scan#exclude} until
+	 * {@link #endScan} are considered deleted.
+	 */
+	Scan beginScan(String root) {
+		return new Scan(root);
+	}
+
+	/**
+	 * Marks the file as seen by the scan.
+	 *
+	 * @return true if the file has not changed since its last backup
+	 */
+	boolean isUnchanged(Scan scan, String path, BasicFileAttributes attrs) {
+		final Record record = records.get(path);
+		if (record == null) {
+			return false;
+		}
+		scan.seen.add(path);
+		return record.matches(attrs);
+	}
+
+	/**
+	 * @param removed receives paths under the root of the scan which it did not see
+	 */
+	void endScan(Scan scan, Consumer<String> removed) {
+		for (String path : under(scan.root)) {
+			if (!scan.seen.contains(path) && !scan.isExcluded(path)) {
+				removed.accept(path);
+			}
+		}
+	}
+
+	synchronized void close() throws IOException {
+		journal.close();
+	}
+}
@@ -0,0 +1,117 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A file being stored, with the attributes it had before it was read.
+ * <p>
+ * Content read through {@link #open} is hashed on the way when a digest algorithm is set, so the version and its
+ * digest come from the same read. {@link #isUnchanged} tells whether the file was modified while it was read.
+ */
+final class SourceFile {
+	final Path path;
+	private final BasicFileAttributes attrs;
+	private final String algorithm;
+	private String digest;
+
+	/**
+	 * @param algorithm MessageDigest algorithm, or null for no digest
+	 */
+	SourceFile(Path path, BasicFileAttributes attrs, String algorithm) {
+		this.path = path;
+		this.attrs = attrs;
+		this.algorithm = algorithm;
+	}
+
+	static SourceFile of(Path path) throws IOException {
+		return new SourceFile(path, Files.readAttributes(path, BasicFileAttributes.class), null);
+	}
+
+	static MessageDigest newDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("unknown digest: " + algorithm, e);
+		}
+	}
+
+	long size() {
+		return attrs.size();
+	}
+
+	FileTime lastModified() {
+		return attrs.lastModifiedTime();
+	}
+
+	boolean isDigesting() {
+		return algorithm != null;
+	}
+
+	/**
+	 * Every call starts a new digest, only a stream read to the end produces one.
+	 */
+	InputStream open() throws IOException {
+		digest = null;
+		final InputStream in = Files.newInputStream(path);
+		if (algorithm == null) {
+			return in;
+		}
+		return new DigestInputStream(in, newDigest(algorithm)) {
+			private boolean finished = false;
+
+			private void finish() {
+				if (!finished) {
+					finished = true;
+					SourceFile.this.digest = algorithm + ":" + ChunkStorage.toHex(getMessageDigest().digest());
+				}
+			}
+
+			@Override
+			public int read() throws IOException {
+				final int b = super.read();
+				if (b < 0) {
+					finish();
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				final int n = super.read(b, off, len);
+				if (n < 0) {
+					finish();
+				}
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * @return "algorithm:hex" of the last stream opened and read to the end, or null
+	 */
+	String digest() {
+		return digest;
+	}
+
+	/**
+	 * @return false if the size or modification time changed since the attributes were taken, or the file is gone
+	 */
+	boolean isUnchanged() throws IOException {
+		final BasicFileAttributes now;
+		try {
+			now = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		return now.size() == attrs.size() && now.lastModifiedTime().equals(attrs.lastModifiedTime());
+	}
+}
@@ -0,0 +1,40 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Stores the content of a single version at its mirrored repository path.
+ */
+interface Storage {
+	/**
+	 * Reads the source through {@link SourceFile#open} exactly once, unless the storage falls back to another
+	 * format, and sets the modification time of target to the one of the source.
+	 *
+	 * @param previous latest older version of the same file, or null
+	 * @return true if the version is stored as a delta against previous
+	 */
+	boolean store(SourceFile source, Path target, Path previous) throws IOException;
+
+	InputStream open(Path target) throws IOException;
+
+	/**
+	 * @return size of the original file stored at target
+	 */
+	long size(Path target) throws IOException;
+
+	/**
+	 * @return file name of the version that the one at target is stored as a delta against, or null
+	 */
+	String baseOf(Path target) throws IOException;
+
+	/**
+	 * @param previous   version before target, or null
+	 * @param dependents versions stored as deltas against target, they are stored against previous or in full
+	 *                   before target is deleted
+	 * @return bytes freed on disk, negative if the dependents take more space now
+	 */
+	long delete(Path target, Path previous, List<Path> dependents) throws IOException;
+}
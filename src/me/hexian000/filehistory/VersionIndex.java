@@ -0,0 +1,458 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent index of all versions in a repository, keyed by the mirrored path of the file.
+ * <p>
+ * It also keeps tombstones, recording when files were deleted or renamed away, and for renamed files the name they
+ * had before, so their history can be followed.
+ * <p>
+ * The index file is an append-only log of put/remove records. It is replayed on open, and compacted when most
+ * of its records are stale.
+ * <p>
+ * Running totals of the original and on-disk sizes of all versions are kept, so they are known without reading
+ * the repository.
+ */
+class VersionIndex {
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+	private static final byte OP_DELETE = 3;
+	private static final byte OP_UNDELETE = 4;
+	private static final byte OP_RENAME = 5;
+	private static final byte OP_PUT_DELTA = 6;
+	private static final byte OP_PUT_STORED = 7;
+
+	static final class Entry {
+		final long time;
+		final long size;
+		final String digest;
+		/**
+		 * Time of the version this one is stored as a delta against, or -1.
+		 */
+		final long base;
+		/**
+		 * Bytes the version file takes on disk, or -1 if unknown, for versions indexed before it was recorded.
+		 */
+		final long stored;
+
+		Entry(long time, long size, String digest, long base, long stored) {
+			this.time = time;
+			this.size = size;
+			this.digest = digest;
+			this.base = base;
+			this.stored = stored;
+		}
+	}
+
+	static final class Tombstone {
+		final long time;
+		/**
+		 * Key of the new name if the file was renamed, otherwise null.
+		 */
+		final String renamedTo;
+
+		Tombstone(long time, String renamedTo) {
+			this.time = time;
+			this.renamedTo = renamedTo;
+		}
+	}
+
+	private final Path file;
+	private final NavigableMap<String, NavigableMap<Long, Entry>> versions = new ConcurrentSkipListMap<>();
+	private final NavigableMap<String, NavigableMap<Long, Tombstone>> tombstones = new ConcurrentSkipListMap<>();
+	private final Map<String, NavigableMap<Long, String>> renames = new ConcurrentSkipListMap<>(); // former keys
+	private final Map<String, Map<Long, Set<Long>>> dependents = new HashMap<>(); // by base, guarded by this
+	private final AtomicLong totalSize = new AtomicLong();
+	private final AtomicLong storedSize = new AtomicLong();
+	private FileChannel channel;
+	private int records = 0;
+
+	VersionIndex(Path file) throws IOException {
+		this.file = file;
+		if (Files.exists(file)) {
+			load();
+		}
+		open();
+	}
+
+	boolean isEmpty() {
+		return versions.isEmpty();
+	}
+
+	private void load() throws IOException {
+		final long valid = RecordReader.replay(file, this::replay);
+		if (valid < Files.size(file)) {
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				ch.truncate(valid);
+			}
+		}
+	}
+
+	/**
+	 * @return false if the record is unknown
+	 */
+	private boolean replay(ByteBuffer buf) {
+		final byte op = buf.get();
+		final String key = readString(buf, buf.getShort() & 0xffff);
+		final long time = buf.getLong();
+		if (op == OP_PUT || op == OP_PUT_DELTA || op == OP_PUT_STORED) {
+			final long size = buf.getLong();
+			final String digest = readString(buf, buf.get() & 0xff);
+			final long base = op != OP_PUT ? buf.getLong() : -1;
+			final long stored = op == OP_PUT_STORED ? buf.getLong() : -1;
+			apply(key, new Entry(time, size, digest.isEmpty() ? null : digest, base, stored));
+		} else if (op == OP_REMOVE) {
+			unapply(key, time);
+		} else if (op == OP_DELETE) {
+			final String renamedTo = readString(buf, buf.getShort() & 0xffff);
+			applyTombstone(key, new Tombstone(time, renamedTo.isEmpty() ? null : renamedTo));
+		} else if (op == OP_UNDELETE) {
+			unapplyTombstone(key, time);
+		} else if (op == OP_RENAME) {
+			applyRename(key, time, readString(buf, buf.getShort() & 0xffff));
+		} else {
+			return false;
+		}
+		records++;
+		return true;
+	}
+
+	private static String readString(ByteBuffer buf, int length) {
+		final byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private void open() throws IOException {
+		int live = 0;
+		for (Map<Long, Entry> entries : versions.values()) {
+			live += entries.size();
+		}
+		for (Map<Long, Tombstone> entries : tombstones.values()) {
+			live += entries.size();
+		}
+		for (Map<Long, String> entries : renames.values()) {
+			live += entries.size();
+		}
+		if (records > 1024 && records > live * 2) {
+			compact();
+		}
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private void compact() throws IOException {
+		final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			records = 0;
+			for (Map.Entry<String, NavigableMap<Long, Entry>> item : versions.entrySet()) {
+				for (Entry entry : item.getValue().values()) {
+					write(ch, encode(OP_PUT, item.getKey(), entry.time, entry));
+				}
+			}
+			for (Map.Entry<String, NavigableMap<Long, Tombstone>> item : tombstones.entrySet()) {
+				for (Tombstone tombstone : item.getValue().values()) {
+					write(ch, encodeLink(OP_DELETE, item.getKey(), tombstone.time, tombstone.renamedTo));
+				}
+			}
+			for (Map.Entry<String, NavigableMap<Long, String>> item : renames.entrySet()) {
+				for (Map.Entry<Long, String> rename : item.getValue().entrySet()) {
+					write(ch, encodeLink(OP_RENAME, item.getKey(), rename.getKey(), rename.getValue()));
+				}
+			}
+			ch.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Encodes a remove record, or a put record if entry is not null.
+	 */
+	private static ByteBuffer encode(byte op, String key, long time, Entry entry) {
+		final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		final byte[] digestBytes = entry != null && entry.digest != null ?
+				entry.digest.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		if (op == OP_PUT && entry.stored >= 0) {
+			op = OP_PUT_STORED;
+		} else if (op == OP_PUT && entry.base >= 0) {
+			op = OP_PUT_DELTA;
+		}
+		final ByteBuffer buf = ByteBuffer.allocate(1 + 2 + keyBytes.length + 8 + 8 + 1 + digestBytes.length + 8 + 8);
+		buf.put(op).putShort((short) keyBytes.length).put(keyBytes).putLong(time);
+		if (op != OP_REMOVE) {
+			buf.putLong(entry.size).put((byte) digestBytes.length).put(digestBytes);
+		}
+		if (op == OP_PUT_DELTA || op == OP_PUT_STORED) {
+			buf.putLong(entry.base);
+		}
+		if (op == OP_PUT_STORED) {
+			buf.putLong(entry.stored);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Encodes a record that refers to another key, or an undelete record if other is null.
+	 */
+	private static ByteBuffer encodeLink(byte op, String key, long time, String other) {
+		final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		final byte[] otherBytes = other != null ? other.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		final ByteBuffer buf = ByteBuffer.allocate(1 + 2 + keyBytes.length + 8 + 2 + otherBytes.length);
+		buf.put(op).putShort((short) keyBytes.length).put(keyBytes).putLong(time);
+		if (op != OP_UNDELETE) {
+			buf.putShort((short) otherBytes.length).put(otherBytes);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private void write(FileChannel ch, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			ch.write(buf);
+		}
+		records++;
+	}
+
+	private void apply(String key, Entry entry) {
+		final Entry old = versions.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>()).put(entry.time, entry);
+		totalSize.addAndGet(entry.size - (old != null ? old.size : 0));
+		storedSize.addAndGet(Math.max(0, entry.stored) - (old != null ? Math.max(0, old.stored) : 0));
+		if (old != null) {
+			unlink(key, old);
+		}
+		if (entry.base >= 0) {
+			dependents.computeIfAbsent(key, k -> new HashMap<>())
+					.computeIfAbsent(entry.base, k -> new HashSet<>()).add(entry.time);
+		}
+	}
+
+	private void unapply(String key, long time) {
+		final NavigableMap<Long, Entry> current = versions.get(key);
+		final Entry old = current != null ? current.get(time) : null;
+		versions.computeIfPresent(key, (k, entries) -> {
+			entries.remove(time);
+			return entries.isEmpty() ? null : entries;
+		});
+		if (old != null) {
+			totalSize.addAndGet(-old.size);
+			storedSize.addAndGet(-Math.max(0, old.stored));
+			unlink(key, old);
+		}
+	}
+
+	private void unlink(String key, Entry entry) {
+		if (entry.base < 0) {
+			return;
+		}
+		dependents.computeIfPresent(key, (k, bases) -> {
+			bases.computeIfPresent(entry.base, (base, times) -> {
+				times.remove(entry.time);
+				return times.isEmpty() ? null : times;
+			});
+			return bases.isEmpty() ? null : bases;
+		});
+	}
+
+	private void applyTombstone(String key, Tombstone tombstone) {
+		tombstones.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>()).put(tombstone.time, tombstone);
+	}
+
+	private void unapplyTombstone(String key, long time) {
+		tombstones.computeIfPresent(key, (k, entries) -> {
+			entries.remove(time);
+			return entries.isEmpty() ? null : entries;
+		});
+	}
+
+	private void applyRename(String key, long time, String from) {
+		renames.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>()).put(time, from);
+	}
+
+	synchronized void put(String key, Entry entry) throws IOException {
+		write(channel, encode(OP_PUT, key, entry.time, entry));
+		apply(key, entry);
+	}
+
+	synchronized void remove(String key, long time) throws IOException {
+		write(channel, encode(OP_REMOVE, key, time, null));
+		unapply(key, time);
+	}
+
+	/**
+	 * Records that key was deleted or renamed, replaces a tombstone of the same time.
+	 */
+	synchronized void putTombstone(String key, Tombstone tombstone) throws IOException {
+		write(channel, encodeLink(OP_DELETE, key, tombstone.time, tombstone.renamedTo));
+		applyTombstone(key, tombstone);
+	}
+
+	synchronized void removeTombstone(String key, long time) throws IOException {
+		write(channel, encodeLink(OP_UNDELETE, key, time, null));
+		unapplyTombstone(key, time);
+	}
+
+	/**
+	 * Records that the file at key was renamed from the file at from.
+	 */
+	synchronized void putRename(String key, long time, String from) throws IOException {
+		write(channel, encodeLink(OP_RENAME, key, time, from));
+		applyRename(key, time, from);
+	}
+
+	boolean contains(String key, long time) {
+		final NavigableMap<Long, Entry> entries = versions.get(key);
+		return entries != null && entries.containsKey(time);
+	}
+
+	/**
+	 * @return times of the versions of key stored as deltas against the version at time
+	 */
+	synchronized List<Long> dependents(String key, long time) {
+		final Map<Long, Set<Long>> bases = dependents.get(key);
+		final Set<Long> times = bases != null ? bases.get(time) : null;
+		return times != null ? new ArrayList<>(times) : Collections.emptyList();
+	}
+
+	/**
+	 * @return versions of key in ascending time order
+	 */
+	NavigableMap<Long, Entry> get(String key) {
+		final NavigableMap<Long, Entry> entries = versions.get(key);
+		return entries != null ? Collections.unmodifiableNavigableMap(entries) : Collections.emptyNavigableMap();
+	}
+
+	/**
+	 * @return tombstones of key in ascending time order
+	 */
+	NavigableMap<Long, Tombstone> tombstones(String key) {
+		final NavigableMap<Long, Tombstone> entries = tombstones.get(key);
+		return entries != null ? Collections.unmodifiableNavigableMap(entries) : Collections.emptyNavigableMap();
+	}
+
+	/**
+	 * @return the deletion of key in effect at time, or null if the file existed at time or never was deleted
+	 */
+	Tombstone deletedAt(String key, long time) {
+		final NavigableMap<Long, Tombstone> entries = tombstones.get(key);
+		final Map.Entry<Long, Tombstone> tombstone = entries != null ? entries.floorEntry(time) : null;
+		if (tombstone == null) {
+			return null;
+		}
+		final Map.Entry<Long, String> rename = renamedFrom(key, time);
+		if (rename != null && rename.getKey() >= tombstone.getKey()) { // another file was renamed to key since
+			return null;
+		}
+		// versions are timed by modification, a newer one means the file was created again
+		final Long version = get(key).floorKey(time);
+		return version == null || version <= tombstone.getKey() ? tombstone.getValue() : null;
+	}
+
+	/**
+	 * @return the version the file at key had at time, or null if there was no file at key
+	 */
+	Map.Entry<Long, Entry> versionAt(String key, long time) {
+		final NavigableMap<Long, Entry> entries = get(key);
+		final NavigableMap<Long, String> formerKeys = renames.get(key);
+		Map.Entry<Long, Entry> version = entries.floorEntry(time);
+		// a renamed file keeps its modification time, so its first version under the new name is older than the
+		// rename, but the file was not there before
+		while (version != null && formerKeys != null) {
+			final Map.Entry<Long, String> rename = formerKeys.ceilingEntry(version.getKey());
+			if (rename == null || rename.getKey() <= time || !contains(rename.getValue(), version.getKey())) {
+				break;
+			}
+			version = entries.lowerEntry(version.getKey());
+		}
+		return version != null && deletedAt(key, time) == null ? version : null;
+	}
+
+	/**
+	 * @return keys with tombstones in ascending order, the view is weakly consistent
+	 */
+	NavigableSet<String> deletedKeys() {
+		return Collections.unmodifiableNavigableSet(tombstones.navigableKeySet());
+	}
+
+	/**
+	 * @return time and former key of the latest rename to key at or before time, or null
+	 */
+	Map.Entry<Long, String> renamedFrom(String key, long time) {
+		final NavigableMap<Long, String> entries = renames.get(key);
+		return entries != null ? entries.floorEntry(time) : null;
+	}
+
+	/**
+	 * @param prefix key of a directory followed by '/', or "" for all
+	 * @return keys under the directory
+	 */
+	static NavigableSet<String> under(NavigableSet<String> keys, String prefix) {
+		if (prefix.isEmpty()) {
+			return keys;
+		}
+		// all keys starting with "dir/" sort between "dir/" and "dir0"
+		return keys.subSet(prefix, true, prefix.substring(0, prefix.length() - 1) + '0', false);
+	}
+
+	/**
+	 * @return all keys in ascending order, the view is weakly consistent
+	 */
+	NavigableSet<String> keys() {
+		return Collections.unmodifiableNavigableSet(versions.navigableKeySet());
+	}
+
+	/**
+	 * @return sum of the sizes of all versions
+	 */
+	long totalSize() {
+		return totalSize.get();
+	}
+
+	/**
+	 * @return sum of the bytes taken on disk by all versions whose stored size is known, chunks not included
+	 */
+	long storedSize() {
+		return storedSize.get();
+	}
+
+	/**
+	 * Replaces all versions, tombstones and renames are kept.
+	 */
+	synchronized void reset(Map<String, NavigableMap<Long, Entry>> content) throws IOException {
+		versions.clear();
+		dependents.clear();
+		totalSize.set(0);
+		storedSize.set(0);
+		for (Map.Entry<String, NavigableMap<Long, Entry>> item : content.entrySet()) {
+			for (Entry entry : item.getValue().values()) {
+				apply(item.getKey(), entry);
+			}
+		}
+		channel.close();
+		compact();
+		open();
+	}
+
+	synchronized void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,44 @@
+package me.hexian000.filehistory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Source of file system change notifications for {@link Watcher}.
+ */
+interface WatchBackend extends Closeable {
+	interface Listener {
+		/**
+		 * @param event one of WatcherEvent.EVENT_*
+		 * @param path  absolute path, directories are registered with absolute paths
+		 */
+		void onEvent(int event, Path path);
+
+		/**
+		 * Events were lost.
+		 *
+		 * @param dir directory whose events were lost, or null if unknown
+		 */
+		void onOverflow(Path dir);
+	}
+
+	/**
+	 * Starts watching a directory, called for every directory found by the crawler and for new directories.
+	 */
+	void register(Path dir);
+
+	int getWatchCount();
+
+	/**
+	 * @return true if events are also delivered from directories that were not registered
+	 */
+	boolean isRecursive();
+
+	/**
+	 * Blocks until events are available and delivers one batch of them.
+	 *
+	 * @return false if the backend is closed
+	 */
+	boolean poll(Listener listener) throws IOException, InterruptedException;
+}
@@ -0,0 +1,82 @@
+package me.hexian000.filehistory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Portable backend based on the JDK {@link WatchService}, one key per directory.
+ */
+class WatchServiceBackend implements WatchBackend {
+	private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+	private final WatchService watchService;
+	private final Logger log;
+
+	WatchServiceBackend(Logger logger) throws IOException {
+		log = logger;
+		watchService = FileSystems.getDefault().newWatchService();
+	}
+
+	@Override
+	public void register(Path dir) {
+		try {
+			WatchKey key = dir.register(watchService,
+					StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_CREATE);
+			keys.put(key, dir);
+		} catch (IOException e) {
+			e.printStackTrace();
+			log.error("Watch failed: {}", e.getMessage());
+		}
+	}
+
+	@Override
+	public int getWatchCount() {
+		return keys.size();
+	}
+
+	@Override
+	public boolean isRecursive() {
+		return false;
+	}
+
+	@Override
+	public boolean poll(Listener listener) throws InterruptedException {
+		final WatchKey watchKey;
+		try {
+			watchKey = watchService.take();
+		} catch (ClosedWatchServiceException e) {
+			return false;
+		}
+		final Path dir = keys.get(watchKey);
+		if (dir == null) {
+			return true;
+		}
+		for (WatchEvent<?> event : watchKey.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				listener.onOverflow(dir);
+				continue;
+			}
+			final Path path = dir.resolve((Path) event.context());
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+				listener.onEvent(WatcherEvent.EVENT_CREATE, path);
+			} else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				listener.onEvent(WatcherEvent.EVENT_DELETE, path);
+			} else if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+				listener.onEvent(WatcherEvent.EVENT_MODIFY, path);
+			}
+		}
+		if (!watchKey.reset()) {
+			keys.remove(watchKey);
+			log.info("Unwatch: {}", dir);
+		}
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+}
@@ -4,104 +4,409 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 public class Watcher extends Thread {
-	private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
-	private final WatchService watchService;
+	/**
+	 * Number of threads crawling directories and registering watches on startup.
+	 */
+	public static final String OPTION_PARALLELISM = "parallelism";
+	/**
+	 * Watch backend: "watchservice" (default), "inotify", or "auto" to use inotify where available.
+	 */
+	public static final String OPTION_BACKEND = "backend";
+	/**
+	 * Minimum milliseconds between two rescans after events were lost.
+	 */
+	public static final String OPTION_RESCAN_INTERVAL = "rescan.interval";
+	/**
+	 * Comma separated patterns in gitignore syntax, if set only matching files are reported.
+	 */
+	public static final String OPTION_INCLUDE = "include";
+	/**
+	 * Comma separated patterns in gitignore syntax, matching files and directories are ignored.
+	 */
+	public static final String OPTION_EXCLUDE = "exclude";
+	/**
+	 * File of exclude patterns in gitignore syntax, relative to the watched directory. Default ".filehistoryignore".
+	 */
+	public static final String OPTION_IGNORE_FILE = "ignore.file";
+	/**
+	 * Files larger than this are ignored, in bytes or with a K, M, G or T suffix.
+	 */
+	public static final String OPTION_MAX_SIZE = "max.size";
+	private static final long PROGRESS_INTERVAL = 5000;
+	private volatile WatchBackend backend;
 	private final Consumer<WatcherEvent> consumer;
 	private final Logger log;
+	private final Path root;
+	private final ScanState scanState;
+	private final ForkJoinPool pool;
+	private final long rescanInterval;
+	private final Set<Path> pendingRescans = new HashSet<>(); // new directories, guarded by itself
+	private final Set<Path> pendingLostRescans = new HashSet<>(); // guarded by pendingRescans
+	private long nextLostRescan = 0; // guarded by pendingRescans
+	private final Thread rescanThread;
+	private final AtomicLong overflowCount = new AtomicLong();
+	private final AtomicLong recoveredCount = new AtomicLong();
+	private final IgnoreRules rules = new IgnoreRules();
+	private final long maxSize;
 
 	public Watcher(String path, Consumer<WatcherEvent> consumer, Logger logger) throws IOException {
+		this(path, consumer, logger, null);
+	}
+
+	public Watcher(String path, Consumer<WatcherEvent> consumer, Logger logger, ScanState scanState)
+			throws IOException {
+		this(path, consumer, logger, scanState, new Properties());
+	}
+
+	/**
+	 * @param scanState if not null, files unchanged since their last backup are not reported by the initial scan,
+	 *                  and files that disappeared meanwhile are reported as deleted
+	 * @param options   see OPTION_* constants
+	 */
+	public Watcher(String path, Consumer<WatcherEvent> consumer, Logger logger, ScanState scanState,
+	               Properties options) throws IOException {
 		this.consumer = consumer;
+		this.scanState = scanState;
 		log = logger;
-		watchService = FileSystems.getDefault().newWatchService();
-		Files.walkFileTree(Paths.get(path), new SimpleFileVisitor<>() {
-			@Override
-			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-				register(dir);
-				return FileVisitResult.CONTINUE;
-			}
+		root = Paths.get(path).toAbsolutePath();
+		final int parallelism = Integer.parseInt(options.getProperty(OPTION_PARALLELISM,
+				Integer.toString(Math.max(4, Runtime.getRuntime().availableProcessors()))));
+		rescanInterval = Long.parseLong(options.getProperty(OPTION_RESCAN_INTERVAL, "10000"));
+		rules.addIncludes(Arrays.asList(options.getProperty(OPTION_INCLUDE, "").split(",")));
+		rules.addExcludes(Arrays.asList(options.getProperty(OPTION_EXCLUDE, "").split(",")));
+		final Path ignoreFile = root.resolve(options.getProperty(OPTION_IGNORE_FILE, ".filehistoryignore"));
+		if (Files.isRegularFile(ignoreFile)) {
+			rules.addExcludes(Files.readAllLines(ignoreFile));
+		}
+		backend = createBackend(options.getProperty(OPTION_BACKEND, "watchservice"), root);
+		maxSize = Options.parseSize(options.getProperty(OPTION_MAX_SIZE, "0"));
+		pool = new ForkJoinPool(parallelism);
+		final Crawler crawler = scan(root, false);
+		log.info("Scan finished: {} directories, {} files, {} excluded.", crawler.directories.sum(),
+				crawler.files.sum(), crawler.excluded.sum());
+		if (scanState != null) {
+			log.info("{} unchanged files skipped.", crawler.skipped.sum());
+		}
+		rescanThread = new Thread(this::rescanLoop, "Watcher-rescan");
+		rescanThread.setDaemon(true);
+	}
 
-			@Override
-			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-				consumer.accept(new WatcherEvent(WatcherEvent.EVENT_CREATE, file.toAbsolutePath().toString()));
-				return FileVisitResult.CONTINUE;
-			}
+	/**
+	 * @return path relative to the root with '/' as separator, or null if there are no rules to match
+	 */
+	private String relativeOf(Path path) {
+		if (rules.isEmpty()) {
+			return null;
+		}
+		final String relative = root.relativize(path).toString();
+		return File.separatorChar == '/' ? relative : relative.replace(File.separatorChar, '/');
+	}
 
-			@Override
-			public FileVisitResult visitFileFailed(Path file, IOException e) {
-				log.warning("Watch failed, ignoring: " + file.toString() + " - " + e.getMessage());
-				return FileVisitResult.CONTINUE;
+	/**
+	 * Checks an event, whose parent directories were not checked if the backend watches recursively.
+	 */
+	private boolean accepts(Path path, int event, boolean isDirectory) {
+		final String relative = relativeOf(path);
+		if (relative != null && !(backend.isRecursive() ?
+				rules.acceptsWithParents(relative, isDirectory) : rules.accepts(relative, isDirectory))) {
+			return false;
+		}
+		if (maxSize > 0 && !isDirectory && event != WatcherEvent.EVENT_DELETE) {
+			try {
+				return Files.size(path) <= maxSize;
+			} catch (IOException e) {
+				return true;
 			}
-		});
+		}
+		return true;
 	}
 
-	public int getWatchCount() {
-		return keys.size();
+	/**
+	 * Crawls a subtree, only reporting files that changed since their last backup if scan state is available.
+	 *
+	 * @param registered true if dir itself is watched already
+	 */
+	private Crawler scan(Path dir, boolean registered) {
+		final ScanState.Scan scan = scanState != null ? scanState.beginScan(dir.toString()) : null;
+		final Crawler crawler = new Crawler(scan);
+		pool.invoke(crawler.new Task(dir, relativeOf(dir), registered));
+		if (scan != null) {
+			scanState.endScan(scan,
+					removed -> consumer.accept(new WatcherEvent(WatcherEvent.EVENT_DELETE, Paths.get(removed))));
+		}
+		return crawler;
+	}
+
+	/**
+	 * @return number of times events were lost
+	 */
+	public long getOverflowCount() {
+		return overflowCount.get();
+	}
+
+	/**
+	 * @return number of changed files found by rescans after events were lost
+	 */
+	public long getRecoveredCount() {
+		return recoveredCount.get();
 	}
 
-	private void register(Path path) {
+	/**
+	 * Rescans for lost events are rate limited to collapse overflow storms, rescans of new directories are not.
+	 *
+	 * @param lost true if events were lost, false for a new directory whose entries may predate its watch
+	 */
+	private void requestRescan(Path dir, boolean lost) {
+		synchronized (pendingRescans) {
+			final Set<Path> pending = lost ? pendingLostRescans : pendingRescans;
+			for (Path other : pending) {
+				if (dir.startsWith(other)) {
+					return;
+				}
+			}
+			pending.removeIf(other -> other.startsWith(dir));
+			pending.add(dir);
+			pendingRescans.notifyAll();
+		}
+	}
+
+	private void rescanLoop() {
 		try {
-			WatchKey key = path.register(watchService,
-					StandardWatchEventKinds.ENTRY_MODIFY,
-					StandardWatchEventKinds.ENTRY_DELETE,
-					StandardWatchEventKinds.ENTRY_CREATE);
-			keys.put(key, path);
-		} catch (IOException e) {
-			e.printStackTrace();
-			log.error("Watch failed: " + e.getMessage());
+			while (!isInterrupted()) {
+				final List<Path> dirs;
+				final boolean lost;
+				synchronized (pendingRescans) {
+					long wait = nextLostRescan - System.currentTimeMillis();
+					while (pendingRescans.isEmpty() && (pendingLostRescans.isEmpty() || wait > 0)) {
+						pendingRescans.wait(pendingLostRescans.isEmpty() ? 0 : wait);
+						wait = nextLostRescan - System.currentTimeMillis();
+					}
+					lost = pendingRescans.isEmpty();
+					final Set<Path> pending = lost ? pendingLostRescans : pendingRescans;
+					dirs = new ArrayList<>(pending);
+					pending.clear();
+				}
+				for (Path dir : dirs) {
+					final Crawler crawler = scan(dir, !lost);
+					final long changed = crawler.files.sum() - crawler.skipped.sum();
+					if (lost) {
+						recoveredCount.addAndGet(changed);
+					}
+					log.info("Rescan {}: {} changed files.", dir, changed);
+				}
+				if (lost) {
+					synchronized (pendingRescans) {
+						nextLostRescan = System.currentTimeMillis() + rescanInterval;
+					}
+				}
+			}
+		} catch (InterruptedException ignored) {
 		}
 	}
 
-	private void processEvents() {
-		while (!isInterrupted()) {
-			WatchKey watchKey;
-			try {
-				watchKey = watchService.take();
-			} catch (InterruptedException e) {
-				break;
+	private WatchBackend createBackend(String name, Path root) throws IOException {
+		switch (name) {
+		case "auto":
+			if (InotifyBackend.isAvailable()) {
+				return new InotifyBackend(root, rules.toExcludeRegex(), log);
 			}
-			if (watchKey == null) {
-				continue;
+			return new WatchServiceBackend(log);
+		case "inotify":
+			return new InotifyBackend(root, rules.toExcludeRegex(), log);
+		case "watchservice":
+			return new WatchServiceBackend(log);
+		}
+		throw new IllegalArgumentException("unknown watch backend: " + name);
+	}
+
+	/**
+	 * Walks a tree in parallel: registers every directory and reports files, without following links.
+	 */
+	private class Crawler {
+		private final ScanState.Scan scan;
+		private final AtomicLong lastProgress = new AtomicLong(System.currentTimeMillis());
+		final LongAdder directories = new LongAdder();
+		final LongAdder files = new LongAdder();
+		final LongAdder skipped = new LongAdder();
+		final LongAdder excluded = new LongAdder();
+
+		Crawler(ScanState.Scan scan) {
+			this.scan = scan;
+		}
+
+		private void visitFile(Path file, BasicFileAttributes attrs) {
+			files.increment();
+			if (scan != null && scanState.isUnchanged(scan, file.toString(), attrs)) {
+				skipped.increment();
+				return;
+			}
+			consumer.accept(new WatcherEvent(WatcherEvent.EVENT_CREATE, file));
+		}
+
+		private void progress() {
+			final long now = System.currentTimeMillis();
+			final long last = lastProgress.get();
+			if (now - last >= PROGRESS_INTERVAL && lastProgress.compareAndSet(last, now)) {
+				log.info("Scanning: {} directories, {} files...", directories.sum(), files.sum());
 			}
-			final Path dir = keys.get(watchKey);
-			if (dir == null) {
-				continue;
+		}
+
+		class Task extends RecursiveAction {
+			private final Path dir;
+			private final String relative;
+			private final boolean registered;
+
+			/**
+			 * @param relative   see {@link #relativeOf}
+			 * @param registered true if dir is watched already
+			 */
+			Task(Path dir, String relative, boolean registered) {
+				this.dir = dir;
+				this.relative = relative;
+				this.registered = registered;
+			}
+
+			private boolean accepts(String child, BasicFileAttributes attrs) {
+				if (child != null && !rules.accepts(child, attrs.isDirectory())) {
+					return false;
+				}
+				return maxSize <= 0 || attrs.isDirectory() || attrs.size() <= maxSize;
 			}
-			for (WatchEvent<?> event : watchKey.pollEvents()) {
-				Path path = dir.resolve((Path) event.context());
-				String pathStr = path.toAbsolutePath().toString();
-				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
-					if (new File(pathStr).isDirectory()) {
-						log.info("New watch: " + pathStr);
-						register(path);
+
+			@Override
+			protected void compute() {
+				if (!registered) {
+					backend.register(dir);
+				}
+				directories.increment();
+				final List<Task> subtasks = new ArrayList<>();
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+					for (Path entry : entries) {
+						final BasicFileAttributes attrs;
+						try {
+							attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						} catch (IOException e) {
+							log.warning("Watch failed, ignoring: {} - {}", entry, e.getMessage());
+							continue;
+						}
+						final String child = relative == null ? null :
+								relative.isEmpty() ? entry.getFileName().toString() : relative + "/" + entry.getFileName();
+						if (!accepts(child, attrs)) {
+							excluded.increment();
+							if (scan != null) {
+								scan.exclude(entry); // not backed up anymore, but not deleted either
+							}
+							continue;
+						}
+						if (attrs.isDirectory()) {
+							subtasks.add(new Task(entry, child, false));
+						} else {
+							visitFile(entry, attrs);
+						}
 					}
-					consumer.accept(new WatcherEvent(WatcherEvent.EVENT_CREATE, pathStr));
-				} else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
-					consumer.accept(new WatcherEvent(WatcherEvent.EVENT_DELETE, pathStr));
-				} else if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
-					consumer.accept(new WatcherEvent(WatcherEvent.EVENT_MODIFY, pathStr));
+				} catch (IOException | DirectoryIteratorException e) {
+					log.warning("Watch failed, ignoring: {} - {}", dir, e.getMessage());
+				}
+				progress();
+				invokeAll(subtasks);
+			}
+		}
+	}
+
+	public int getWatchCount() {
+		return backend.getWatchCount();
+	}
+
+	private void processEvents() throws IOException {
+		final WatchBackend.Listener listener = new WatchBackend.Listener() {
+			@Override
+			public void onEvent(int event, Path path) {
+				final boolean isDirectory = event == WatcherEvent.EVENT_CREATE &&
+						Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+				if (!accepts(path, event, isDirectory)) {
+					return;
+				}
+				if (isDirectory) {
+					log.info("New watch: {}", path);
+					backend.register(path);
+					requestRescan(path, false); // entries created before the watch was registered
 				}
+				consumer.accept(new WatcherEvent(event, path));
+			}
+
+			@Override
+			public void onOverflow(Path dir) {
+				overflowCount.incrementAndGet();
+				log.warning("Events lost, rescan: {}", dir != null ? dir : root);
+				requestRescan(dir != null ? dir.toAbsolutePath() : root, true);
 			}
-			if (!watchKey.reset()) {
-				keys.remove(watchKey);
-				log.info("Unwatch: " + dir);
+		};
+		while (!isInterrupted()) {
+			try {
+				if (!backend.poll(listener)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				if (!(backend instanceof InotifyBackend) || isInterrupted()) {
+					throw e;
+				}
+				fallback(e);
 			}
 		}
 	}
 
+	/**
+	 * Replaces a failed inotify backend, the whole tree is rescanned since events were lost meanwhile.
+	 */
+	private void fallback(IOException e) throws IOException {
+		log.error("Watch failed, falling back to WatchService: {}", e.getMessage());
+		backend.close();
+		backend = new WatchServiceBackend(log);
+		if (isInterrupted()) {
+			backend.close();
+			return;
+		}
+		overflowCount.incrementAndGet();
+		requestRescan(root, true);
+	}
+
+	@Override
+	public void interrupt() {
+		super.interrupt();
+		rescanThread.interrupt();
+		try {
+			backend.close(); // wakes up a blocking poll
+		} catch (IOException ignored) {
+		}
+	}
+
 	@Override
 	public void run() {
+		rescanThread.start();
 		try {
 			processEvents();
-		} catch (ClosedWatchServiceException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
+			log.error("Watch failed: {}", e.getMessage());
 		} finally {
+			rescanThread.interrupt();
+			try {
+				rescanThread.join();
+			} catch (InterruptedException ignored) {
+			}
+			pool.shutdown();
 			try {
-				watchService.close();
+				backend.close();
 			} catch (IOException ignored) {
 			}
 		}
@@ -1,14 +1,19 @@
 package me.hexian000.filehistory;
 
-class WatcherEvent {
+import java.nio.file.Path;
+
+public class WatcherEvent {
 	static final int EVENT_CREATE = 1;
 	static final int EVENT_DELETE = 2;
 	static final int EVENT_MODIFY = 3;
-	private final String path;
+	private final Path path;
 	long timestamp;
 	private int event;
 
-	WatcherEvent(int event, String path) {
+	/**
+	 * @param path absolute path
+	 */
+	WatcherEvent(int event, Path path) {
 		this.event = event;
 		this.path = path;
 		timestamp = System.currentTimeMillis();
@@ -26,7 +31,7 @@ class WatcherEvent {
 		return event;
 	}
 
-	String getPath() {
+	Path getPath() {
 		return path;
 	}
 }
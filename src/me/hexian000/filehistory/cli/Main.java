@@ -0,0 +1,69 @@
+package me.hexian000.filehistory.cli;
+
+import me.hexian000.filehistory.ConsoleLogSink;
+import me.hexian000.filehistory.Daemon;
+import me.hexian000.filehistory.Logger;
+import me.hexian000.filehistory.ui.Version;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Headless entry point, does not load any AWT or Swing classes.
+ */
+public class Main {
+	private static void usage() {
+		System.err.println("Usage: java -cp FileHistory.jar " + Main.class.getName() + " <config file>");
+		System.err.println("       java -cp FileHistory.jar " + Main.class.getName() + " <repository> <watch>...");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) {
+		System.err.println(Version.TITLE + " " + Version.format());
+		System.err.println("  " + Version.COPYRIGHT);
+		System.err.println();
+
+		if (args.length < 1) {
+			usage();
+			return;
+		}
+		final Properties config;
+		final Logger log;
+		try {
+			config = args.length == 1 ? Daemon.readConfig(Paths.get(args[0])) : new Properties();
+			log = Logger.create(config, new ConsoleLogSink(System.err));
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Invalid config: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		final Daemon daemon;
+		try {
+			if (args.length == 1) {
+				daemon = Daemon.load(config, log);
+			} else {
+				daemon = new Daemon(log, new Properties());
+				daemon.addRepository("default", args[0], new Properties());
+				for (int i = 1; i < args.length; i++) {
+					daemon.addWatch(args[i], "default", new Properties());
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			log.error("Start failed: {}", e.getMessage());
+			log.close();
+			System.exit(1);
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			daemon.close();
+			log.close();
+		}, "shutdown"));
+		daemon.start();
+		try {
+			daemon.awaitClose();
+		} catch (InterruptedException ignored) {
+		}
+	}
+}
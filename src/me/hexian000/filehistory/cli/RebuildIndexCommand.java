@@ -0,0 +1,50 @@
+package me.hexian000.filehistory.cli;
+
+import me.hexian000.filehistory.Logger;
+import me.hexian000.filehistory.Repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Recreates the version index of a repository from the version files, e.g. after the index was damaged. Tombstones
+ * and renames recorded in the index are kept. The repository must not be in use by a running daemon.
+ */
+public class RebuildIndexCommand {
+	private static void usage() {
+		System.err.println("Usage: java -cp FileHistory.jar " + RebuildIndexCommand.class.getName() +
+				" <repository>");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			usage();
+			return;
+		}
+		final Path repoPath = Paths.get(args[0]);
+		if (!Files.isDirectory(repoPath)) {
+			System.err.println("Not a repository: " + repoPath);
+			System.exit(1);
+			return;
+		}
+
+		final Logger log = new Logger(System.err::println);
+		try {
+			final Repository repository = new Repository(repoPath.toString(), log);
+			try {
+				repository.rebuildIndex();
+			} finally {
+				repository.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			log.error("Rebuild failed: {}", e.getMessage());
+			System.exit(1);
+			return;
+		}
+		System.exit(0);
+	}
+}
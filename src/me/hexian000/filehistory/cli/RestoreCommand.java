@@ -0,0 +1,144 @@
+package me.hexian000.filehistory.cli;
+
+import me.hexian000.filehistory.Deletion;
+import me.hexian000.filehistory.Logger;
+import me.hexian000.filehistory.Repository;
+import me.hexian000.filehistory.Restore;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Restores a directory tree as it was at a point in time, into a directory or a tar or zip archive, or lists the
+ * files deleted from it. The repository must not be in use by a running daemon.
+ */
+public class RestoreCommand {
+	private static final DateTimeFormatter TIME_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+	private static void usage() {
+		System.err.println("Usage: java -cp FileHistory.jar " + RestoreCommand.class.getName() +
+				" [-n] [-j threads] <repository> <directory> <time> <target>");
+		System.err.println("       java -cp FileHistory.jar " + RestoreCommand.class.getName() +
+				" -d <repository> <directory> <since>");
+		System.err.println("  time:   local date and time, e.g. 2019-01-31T18:00, an instant, e.g. " +
+				"2019-01-31T10:00:00Z, or now");
+		System.err.println("  target: directory, file ending with .tar or .zip, or - for a tar on stdout");
+		System.err.println("  -n      list the files that would be restored");
+		System.err.println("  -j      number of files restored in parallel into a directory, default 4");
+		System.err.println("  -d      list the files deleted or renamed since a time");
+		System.exit(2);
+	}
+
+	static long parseTime(String text) {
+		if ("now".equals(text)) {
+			return System.currentTimeMillis();
+		}
+		try {
+			return Instant.parse(text).toEpochMilli();
+		} catch (DateTimeParseException ignored) {
+		}
+		return LocalDateTime.parse(text).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+	}
+
+	private static int listDeleted(Repository repository, Path dir, long since) {
+		for (Deletion deletion : repository.listDeleted(dir, since)) {
+			System.out.println(TIME_FORMAT.format(Instant.ofEpochMilli(deletion.getTime())) + "  " +
+					deletion.getPath() + (deletion.getRenamedTo() != null ? " -> " + deletion.getRenamedTo() : ""));
+		}
+		return 0;
+	}
+
+	/**
+	 * @return number of files failed
+	 */
+	private static int restore(Restore restore, Logger log, String target, boolean dryRun, int threads)
+			throws IOException, InterruptedException {
+		final int failed;
+		if (dryRun) {
+			for (Restore.Item item : restore.getItems()) {
+				System.out.println(TIME_FORMAT.format(Instant.ofEpochMilli(item.getTime())) + "  " +
+						item.getSize() + "  " + item.getPath());
+			}
+			failed = 0;
+		} else if ("-".equals(target)) {
+			failed = restore.writeTar(new BufferedOutputStream(System.out, 65536));
+		} else if (target.endsWith(".tar") || target.endsWith(".zip")) {
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(target)), 65536)) {
+				failed = target.endsWith(".tar") ? restore.writeTar(out) : restore.writeZip(out);
+			}
+		} else {
+			failed = restore.copyTo(Paths.get(target), threads);
+		}
+		log.info("{} files, {} bytes, {} failed", restore.getItems().size(), restore.getTotalSize(), failed);
+		return failed;
+	}
+
+	public static void main(String[] args) {
+		boolean dryRun = false, deleted = false;
+		int threads = 4;
+		int i = 0;
+		try {
+			for (; i < args.length && args[i].startsWith("-") && args[i].length() > 1; i++) {
+				if ("-n".equals(args[i])) {
+					dryRun = true;
+				} else if ("-d".equals(args[i])) {
+					deleted = true;
+				} else if ("-j".equals(args[i]) && i + 1 < args.length) {
+					threads = Integer.parseInt(args[++i]);
+				} else {
+					usage();
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage();
+		}
+		if (args.length - i != (deleted ? 3 : 4) || threads < 1) {
+			usage();
+			return;
+		}
+		final Path repoPath = Paths.get(args[i]);
+		final Path dir = Paths.get(args[i + 1]).toAbsolutePath().normalize();
+		final String target = deleted ? null : args[i + 3];
+		final long time;
+		try {
+			time = parseTime(args[i + 2]);
+		} catch (DateTimeParseException e) {
+			System.err.println("Invalid time: " + args[i + 2]);
+			System.exit(2);
+			return;
+		}
+		if (!Files.isDirectory(repoPath)) {
+			System.err.println("Not a repository: " + repoPath);
+			System.exit(1);
+			return;
+		}
+
+		final Logger log = new Logger(System.err::println);
+		int failed;
+		try {
+			final Repository repository = new Repository(repoPath.toString(), log);
+			try {
+				failed = deleted ? listDeleted(repository, dir, time) :
+						restore(new Restore(repository, log, dir, time), log, target, dryRun, threads);
+			} finally {
+				repository.close();
+			}
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+			log.error("Restore failed: {}", e.getMessage());
+			System.exit(1);
+			return;
+		}
+		System.exit(failed > 0 ? 1 : 0);
+	}
+}
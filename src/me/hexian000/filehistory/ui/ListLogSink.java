@@ -0,0 +1,71 @@
+package me.hexian000.filehistory.ui;
+
+import me.hexian000.filehistory.LogRecord;
+import me.hexian000.filehistory.LogSink;
+
+import javax.swing.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows the latest log lines in a JList. Lines are collected off the EDT and added in bulk at most
+ * {@link #FRAME_RATE} times per second, so a burst of log records can not flood the event queue.
+ */
+class ListLogSink implements LogSink {
+	private static final int FRAME_RATE = 10;
+	private final JList<String> list;
+	private final int maxLines;
+	private final ArrayDeque<String> pending = new ArrayDeque<>();
+	private final Timer timer;
+
+	/**
+	 * @param list its model must be a DefaultListModel
+	 */
+	ListLogSink(JList<String> list, int maxLines) {
+		this.list = list;
+		this.maxLines = maxLines;
+		timer = new Timer(1000 / FRAME_RATE, e -> update());
+		timer.start();
+	}
+
+	@Override
+	public void write(List<LogRecord> batch) {
+		synchronized (pending) {
+			for (LogRecord record : batch) {
+				if (pending.size() >= maxLines) {
+					pending.removeFirst(); // would be scrolled out anyway
+				}
+				pending.addLast(record.toString());
+			}
+		}
+	}
+
+	private void update() {
+		final List<String> lines;
+		synchronized (pending) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			lines = new ArrayList<>(pending);
+			pending.clear();
+		}
+		final DefaultListModel<String> model = (DefaultListModel<String>) list.getModel();
+		final int overflow = model.size() + lines.size() - maxLines;
+		if (overflow >= model.size()) {
+			model.clear();
+		} else if (overflow > 0) {
+			model.removeRange(0, overflow - 1);
+		}
+		model.addAll(lines);
+		final int lastIndex = model.size() - 1;
+		list.setSelectedIndex(lastIndex);
+		list.ensureIndexIsVisible(lastIndex);
+	}
+
+	@Override
+	public void close() {
+		timer.stop();
+		SwingUtilities.invokeLater(this::update);
+	}
+}
@@ -1,6 +1,8 @@
 package me.hexian000.filehistory.ui;
 
 import javax.swing.*;
+import java.io.File;
+import java.util.Arrays;
 
 class Main {
 
@@ -21,12 +23,13 @@ class Main {
 		}
 
 		WatcherDaemon watcherDaemon = null;
-		if (args.length == 2) {
-			if (args[1].startsWith(args[0])) {
+		if (args.length >= 2) {
+			final String[] watches = Arrays.copyOfRange(args, 1, args.length);
+			if (Arrays.stream(watches).anyMatch(watch -> watch.startsWith(args[0]))) {
 				System.err.println("Error: repository must not be a sub-directory of watch");
 				System.err.println();
 			} else {
-				watcherDaemon = new WatcherDaemon(args[0], args[1]);
+				watcherDaemon = new WatcherDaemon(args[0], String.join(File.pathSeparator, watches));
 			}
 		}
 		if (watcherDaemon == null) {
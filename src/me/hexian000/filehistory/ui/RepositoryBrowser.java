@@ -1,5 +1,6 @@
 package me.hexian000.filehistory.ui;
 
+import me.hexian000.filehistory.FileVersion;
 import me.hexian000.filehistory.Repository;
 
 import javax.swing.*;
@@ -9,30 +10,25 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Locale;
-import java.util.TimeZone;
 
 class RepositoryBrowser extends JDialog {
-	private static final DateFormat DISPLAY_FORMAT =
-			new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
-
-	static {
-		DISPLAY_FORMAT.setTimeZone(TimeZone.getDefault());
-	}
+	private static final DateTimeFormatter DISPLAY_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS", Locale.getDefault()).withZone(ZoneId.systemDefault());
 
 	private JPanel contentPane;
 	private JButton buttonClose;
-	private JList<String> listVersions;
+	private JList<FileVersion> listVersions;
 	private JTextField textFile;
 	private JButton buttonBrowseFile;
 	private JButton buttonSave;
 	private JButton buttonDelete;
 
 	private final Repository repository;
+	private final VersionListModel versions;
 
 	private RepositoryBrowser(final Repository repository, final String startPath) {
 		this.repository = repository;
@@ -41,7 +37,14 @@ class RepositoryBrowser extends JDialog {
 		setModal(true);
 		setTitle(Utils.getLocalizedString("repository_browser.title"));
 		getRootPane().setDefaultButton(buttonBrowseFile);
-		listVersions.setModel(new DefaultListModel<>());
+		versions = new VersionListModel(repository);
+		listVersions.setModel(versions);
+		final VersionCellRenderer renderer = new VersionCellRenderer();
+		listVersions.setCellRenderer(renderer);
+		// fixed cell sizes, so the list only asks for the rows it shows
+		final Dimension cellSize = renderer.getSampleSize(listVersions);
+		listVersions.setFixedCellWidth(cellSize.width);
+		listVersions.setFixedCellHeight(cellSize.height);
 
 		buttonClose.addActionListener(e -> onClose());
 
@@ -57,18 +60,11 @@ class RepositoryBrowser extends JDialog {
 		});
 
 		buttonSave.addActionListener(e -> {
-			if (listVersions.getSelectedIndex() == -1) {
-				return;
-			}
-			Date date;
-			try {
-				date = DISPLAY_FORMAT.parse(listVersions.getSelectedValue());
-			} catch (ParseException ex) {
-				ex.printStackTrace();
+			final FileVersion version = listVersions.getSelectedValue();
+			if (version == null) {
 				return;
 			}
 
-
 			File repoFile = new File(textFile.getText());
 			JFileChooser chooser = new JFileChooser();
 			chooser.setDialogTitle(Utils.getLocalizedString("repository_browser.dialog_title_save"));
@@ -85,7 +81,7 @@ class RepositoryBrowser extends JDialog {
 					}
 				}
 				try {
-					repository.fetchVersion(repoFile, date, chooser.getSelectedFile());
+					repository.fetchVersion(version, chooser.getSelectedFile());
 				} catch (IOException ex) {
 					ex.printStackTrace();
 					JOptionPane.showMessageDialog(this, ex.getLocalizedMessage(),
@@ -96,14 +92,8 @@ class RepositoryBrowser extends JDialog {
 		});
 
 		buttonDelete.addActionListener(e -> {
-			if (listVersions.getSelectedIndex() == -1) {
-				return;
-			}
-			Date date;
-			try {
-				date = DISPLAY_FORMAT.parse(listVersions.getSelectedValue());
-			} catch (ParseException ex) {
-				ex.printStackTrace();
+			final FileVersion version = listVersions.getSelectedValue();
+			if (version == null) {
 				return;
 			}
 
@@ -112,14 +102,14 @@ class RepositoryBrowser extends JDialog {
 					Utils.getLocalizedString("dialog_title_confirm"),
 					JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
 				try {
-					repository.deleteVersion(new File(textFile.getText()), date);
+					repository.deleteVersion(version);
 				} catch (IOException ex) {
 					ex.printStackTrace();
 					JOptionPane.showMessageDialog(this, ex.getLocalizedMessage(),
 							Utils.getLocalizedString("dialog_title_error"),
 							JOptionPane.ERROR_MESSAGE);
 				} finally {
-					refreshList(new File(textFile.getText()));
+					versions.reload();
 				}
 			}
 		});
@@ -139,23 +129,67 @@ class RepositoryBrowser extends JDialog {
 
 	private void refreshList(File file) {
 		if (!file.exists() || !file.isFile()) {
-			((DefaultListModel<String>) listVersions.getModel()).clear();
+			versions.load(null);
 			return;
 		}
 
-		final java.util.List<Date> list = repository.listVersions(file);
 		textFile.setText(file.toString());
-		final DefaultListModel<String> model = (DefaultListModel<String>) listVersions.getModel();
-		model.clear();
-		for (Date date : list) {
-			model.addElement(DISPLAY_FORMAT.format(date));
-		}
+		versions.load(file);
 	}
 
 	private void onClose() {
+		versions.close();
 		dispose();
 	}
 
+	static String formatSize(long size) {
+		if (size < 1024) {
+			return size + " B";
+		}
+		final String units = "KMGTPE";
+		int unit = 0;
+		double value = size / 1024.0;
+		while (value >= 1024 && unit < units.length() - 1) {
+			value /= 1024;
+			unit++;
+		}
+		return String.format(Locale.ROOT, "%.1f %ciB", value, units.charAt(unit));
+	}
+
+	/**
+	 * Shows time, size and the change from the previous version, or a placeholder while the row is loading.
+	 */
+	private static class VersionCellRenderer extends DefaultListCellRenderer {
+		private static final String SAMPLE = "0000-00-00 00:00:00.000    000.0 MiB    +000.0 MiB";
+
+		@Override
+		public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected,
+		                                              boolean cellHasFocus) {
+			final String text;
+			if (value == null) {
+				text = Utils.getLocalizedString("repository_browser.loading");
+			} else {
+				final FileVersion version = (FileVersion) value;
+				final FileVersion previous = ((VersionListModel) list.getModel()).getPrevious(index);
+				text = DISPLAY_FORMAT.format(Instant.ofEpochMilli(version.getTime())) + "    " +
+						formatSize(version.getSize()) + (previous != null ? "    " + change(version, previous) : "");
+			}
+			return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+		}
+
+		private static String change(FileVersion version, FileVersion previous) {
+			if (version.hasSameContent(previous)) {
+				return Utils.getLocalizedString("repository_browser.same_content");
+			}
+			final long delta = version.getSize() - previous.getSize();
+			return (delta < 0 ? "-" : "+") + formatSize(Math.abs(delta));
+		}
+
+		Dimension getSampleSize(JList<?> list) {
+			return super.getListCellRendererComponent(list, SAMPLE, 0, false, false).getPreferredSize();
+		}
+	}
+
 	static void show(Component parent, Repository repository, String startPath) {
 		RepositoryBrowser dialog = new RepositoryBrowser(repository, startPath);
 		dialog.pack();
@@ -1,14 +1,14 @@
 package me.hexian000.filehistory.ui;
 
-final class Version {
-	static final String TITLE = "File History";
-	static final String COPYRIGHT = "By: He Xian Copyright (c) 2018-2019";
+public final class Version {
+	public static final String TITLE = "File History";
+	public static final String COPYRIGHT = "By: He Xian Copyright (c) 2018-2019";
 	private static final int MAJOR = 0;
 	private static final int MINOR = 9;
 	private static final int REVISION = 1;
 	private static final String TAG = "RC";
 
-	static String format() {
+	public static String format() {
 		StringBuilder sb = new StringBuilder();
 		sb.append(MAJOR).append('.').append(MINOR);
 		if (REVISION != 0) {
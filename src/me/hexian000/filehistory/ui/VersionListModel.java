@@ -0,0 +1,134 @@
+package me.hexian000.filehistory.ui;
+
+import me.hexian000.filehistory.FileVersion;
+import me.hexian000.filehistory.Repository;
+
+import javax.swing.*;
+import java.io.File;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Versions of one file, newest first, loaded in pages by a background thread when the list asks for them.
+ * Rows not loaded yet are null. All methods except the loader run on the event dispatch thread.
+ */
+class VersionListModel extends AbstractListModel<FileVersion> {
+	private static final int PAGE_SIZE = 256;
+	private static final int MAX_PAGES = 64;
+
+	private final Repository repository;
+	private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+		final Thread thread = new Thread(r, "VersionListModel");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// each page holds one more version than its rows, the predecessor of its last row
+	private final Map<Integer, List<FileVersion>> pages = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, List<FileVersion>> eldest) {
+			return size() > MAX_PAGES;
+		}
+	};
+	private final Set<Integer> loading = new HashSet<>();
+	private File file;
+	private int size = 0;
+	private int generation = 0; // results of older generations are stale
+
+	VersionListModel(Repository repository) {
+		this.repository = repository;
+	}
+
+	/**
+	 * Lists the versions of file, or nothing if file is null.
+	 */
+	void load(File file) {
+		final int gen = ++generation;
+		final int oldSize = size;
+		this.file = file;
+		size = 0;
+		pages.clear();
+		loading.clear();
+		if (oldSize > 0) {
+			fireIntervalRemoved(this, 0, oldSize - 1);
+		}
+		if (file == null) {
+			return;
+		}
+		loader.execute(() -> {
+			final int count = repository.countVersions(file);
+			SwingUtilities.invokeLater(() -> {
+				if (gen == generation && count > 0) {
+					size = count;
+					fireIntervalAdded(this, 0, count - 1);
+				}
+			});
+		});
+	}
+
+	void reload() {
+		load(file);
+	}
+
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return version at index, or null if not loaded yet
+	 */
+	@Override
+	public FileVersion getElementAt(int index) {
+		return get(index, 0);
+	}
+
+	/**
+	 * @return version stored before the one at index, or null if there is none or it is not loaded yet
+	 */
+	FileVersion getPrevious(int index) {
+		return get(index, 1);
+	}
+
+	private FileVersion get(int index, int next) {
+		final int n = index / PAGE_SIZE;
+		final List<FileVersion> page = pages.get(n);
+		if (page == null) {
+			request(n);
+			return null;
+		}
+		final int i = index % PAGE_SIZE + next;
+		return i < page.size() ? page.get(i) : null;
+	}
+
+	private void request(int n) {
+		if (file == null || !loading.add(n)) {
+			return;
+		}
+		final File file = this.file;
+		final int gen = generation;
+		loader.execute(() -> {
+			final List<FileVersion> page = repository.listVersions(file, n * PAGE_SIZE, PAGE_SIZE + 1);
+			SwingUtilities.invokeLater(() -> {
+				if (gen != generation) {
+					return;
+				}
+				loading.remove(n);
+				pages.put(n, page);
+				final int first = n * PAGE_SIZE;
+				final int last = Math.min(size, first + PAGE_SIZE) - 1;
+				if (last >= first) {
+					fireContentsChanged(this, first, last);
+				}
+			});
+		});
+	}
+
+	void close() {
+		loader.shutdownNow();
+	}
+}
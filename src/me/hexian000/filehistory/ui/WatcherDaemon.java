@@ -1,9 +1,8 @@
 package me.hexian000.filehistory.ui;
 
-import me.hexian000.filehistory.EventFilter;
+import me.hexian000.filehistory.Daemon;
 import me.hexian000.filehistory.Logger;
 import me.hexian000.filehistory.Repository;
-import me.hexian000.filehistory.Watcher;
 
 import javax.swing.*;
 import java.awt.event.KeyEvent;
@@ -11,6 +10,8 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
+import java.util.Properties;
+import java.util.regex.Pattern;
 
 class WatcherDaemon extends JFrame {
 	private JPanel contentPane;
@@ -24,8 +25,9 @@ class WatcherDaemon extends JFrame {
 	private JButton buttonClearLog;
 	private JButton buttonRepoBrowser;
 
+	private final Logger log;
 	private Repository repository;
-	private Runnable closeAll;
+	private Daemon daemon;
 
 	WatcherDaemon(String repoPath, String watchPath) {
 		setContentPane(contentPane);
@@ -35,6 +37,7 @@ class WatcherDaemon extends JFrame {
 		textFieldWatch.setText(watchPath);
 
 		listLog.setModel(new DefaultListModel<>());
+		log = new Logger(Logger.Level.INFO, 8192, new ListLogSink(listLog, 256));
 
 		buttonStart.addActionListener(e -> onStart());
 
@@ -56,7 +59,7 @@ class WatcherDaemon extends JFrame {
 
 		buttonClearLog.addActionListener(e -> ((DefaultListModel<String>) listLog.getModel()).clear());
 
-		buttonRepoBrowser.addActionListener(e -> RepositoryBrowser.show(this, repository, textFieldWatch.getText()));
+		buttonRepoBrowser.addActionListener(e -> RepositoryBrowser.show(this, repository, getWatchPaths()[0]));
 
 		// call onExit() when cross is clicked
 		setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
@@ -81,49 +84,47 @@ class WatcherDaemon extends JFrame {
 		return null;
 	}
 
-	private final Logger log = new Logger(
-			line -> SwingUtilities.invokeLater(() -> {
-				final DefaultListModel<String> listModel = (DefaultListModel<String>) listLog.getModel();
-				if (listModel.size() >= 256) {
-					listModel.removeElementAt(0);
-				}
-				listModel.addElement(line);
-				final int lastIndex = listModel.size() - 1;
-				listLog.setSelectedIndex(lastIndex);
-				listLog.ensureIndexIsVisible(lastIndex);
-			}));
+	/**
+	 * @return watched directories, separated by the path separator in the text field
+	 */
+	private String[] getWatchPaths() {
+		return textFieldWatch.getText().split(Pattern.quote(File.pathSeparator));
+	}
 
 	private void onStart() {
-		final File watchDir = new File(textFieldWatch.getText());
-		if (!watchDir.exists() || !watchDir.isDirectory()) {
-			JOptionPane.showMessageDialog(this,
-					Utils.getLocalizedString("watcher_daemon.dialog_watch_not_exist"),
-					Utils.getLocalizedString("dialog_title_error"), JOptionPane.ERROR_MESSAGE);
-			return;
+		for (String watchPath : getWatchPaths()) {
+			final File watchDir = new File(watchPath);
+			if (!watchDir.exists() || !watchDir.isDirectory()) {
+				JOptionPane.showMessageDialog(this,
+						Utils.getLocalizedString("watcher_daemon.dialog_watch_not_exist"),
+						Utils.getLocalizedString("dialog_title_error"), JOptionPane.ERROR_MESSAGE);
+				return;
+			}
 		}
 
-		Repository r;
+		final Daemon d = new Daemon(log, new Properties());
 		try {
-			r = new Repository(textFieldRepository.getText(), log);
+			repository = d.addRepository("default", textFieldRepository.getText(), new Properties());
 		} catch (IOException e) {
 			e.printStackTrace();
+			d.close();
 			JOptionPane.showMessageDialog(this, e.getLocalizedMessage(),
 					Utils.getLocalizedString("dialog_title_error"), JOptionPane.ERROR_MESSAGE);
 			return;
 		}
-		repository = r;
-		EventFilter filter = new EventFilter(repository);
-		Watcher watcher;
 		try {
-			watcher = new Watcher(textFieldWatch.getText(), filter, log);
+			for (String watchPath : getWatchPaths()) {
+				d.addWatch(watchPath, "default", new Properties());
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
-			log.error("Error occurred: " + e.getMessage());
+			log.error("Error occurred: {}", e.getMessage());
+			d.close();
+			repository = null;
 			return;
 		}
-		log.info(watcher.getWatchCount() + " watches created.");
-
-		watcher.start();
+		daemon = d;
+		daemon.start();
 
 		textFieldRepository.setEnabled(false);
 		textFieldWatch.setEnabled(false);
@@ -132,23 +133,14 @@ class WatcherDaemon extends JFrame {
 		buttonStart.setEnabled(false);
 		buttonRepoBrowser.setEnabled(true);
 
-		closeAll = () -> {
-			watcher.interrupt();
-			try {
-				watcher.join();
-			} catch (InterruptedException ignored) {
-			}
-			filter.close();
-			repository.close();
-		};
-
-		Runtime.getRuntime().addShutdownHook(new Thread(closeAll));
+		Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
 	}
 
 	private void onExit() {
-		if (closeAll != null) {
-			closeAll.run();
+		if (daemon != null) {
+			daemon.close();
 		}
+		log.close();
 
 		dispose();
 	}